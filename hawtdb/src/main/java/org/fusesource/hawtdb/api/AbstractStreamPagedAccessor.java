@@ -39,7 +39,16 @@ abstract public class AbstractStreamPagedAccessor<T>  implements PagedAccessor<T
         // support huge nodes.
         // The first extent is only 1 page long, extents linked off
         // the first page will be up to 128 pages long.
-        ExtentOutputStream eos = new ExtentOutputStream(paged, page, (short) 1, (short) 128);
+        return store(paged, page, data, (short) 128);
+    }
+
+    /**
+     * Stores the data with the extents linked off the first page being
+     * up to the given number of pages long.  Short extents fit in the
+     * free pages between the used ones.
+     */
+    public List<Integer> store(Paged paged, int page, T data, short extentSize) {
+        ExtentOutputStream eos = new ExtentOutputStream(paged, page, (short) 1, extentSize);
         DataOutputStream os = new DataOutputStream(eos);
         try {
             encode(paged, os, data);
@@ -26,11 +26,28 @@ import org.fusesource.hawtdb.internal.util.Ranges;
  */
 public interface Allocator { 
 
+    /**
+     * How a page file picks the free pages to allocate.
+     */
+    enum Policy {
+        /** scans the free ranges for the first one that is large enough */
+        FIRST_FIT,
+        /** looks up the smallest free range that is large enough */
+        BEST_FIT
+    }
+
     /**
      * Allocates a continuous number of items and returns the position of first item in the sequence.
      */
     public int alloc(int count) throws OutOfSpaceException;
 
+    /**
+     * Allocates a continuous number of items at or soon after the hinted position, so
+     * that items which get accessed together are stored close to each other.  Does the same
+     * as {@link #alloc(int)} when there are no free items near the hint or the hint is negative.
+     */
+    public int alloc(int count, int hint) throws OutOfSpaceException;
+
     /**
      * Frees a given number of items at a given position.
      */
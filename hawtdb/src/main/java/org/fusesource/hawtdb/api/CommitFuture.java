@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * The result of an asynchronous transaction commit.  The future
+ * completes once the commit's updates have been synced to disk.
+ * Cancelling is not supported.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface CommitFuture extends Future<Void> {
+
+    /**
+     * Registers a listener which is run once the commit has been
+     * synced to disk.  If that already happened, the listener runs
+     * immediately on the calling thread, otherwise it runs on the
+     * thread which synced the commit, so it should not block.
+     *
+     * @param listener
+     */
+    void addListener(Runnable listener);
+
+}
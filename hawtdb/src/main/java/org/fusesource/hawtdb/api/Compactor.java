@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import java.util.ArrayList;
+
+/**
+ * Shrinks a {@link TxPageFile} while it's in use.  The pages of the
+ * registered indexes which are stored near the end of the file get moved
+ * into the free pages in front of them, and then the free pages at the
+ * end of the file get truncated.
+ * 
+ * The pages get moved a few at a time in short transactions, so that
+ * concurrent transactions only ever conflict with a small update.  Only
+ * the index pages get moved; pages which the stored values refer to,
+ * and the index headers, stay where they are.
+ * 
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class Compactor {
+
+    /** A step gets retried this many times when it conflicts with other transactions */
+    private static final int MAX_CONFLICTS = 16;
+
+    private final TxPageFile pageFile;
+    private final ArrayList<IndexFactory<?, ?>> factories = new ArrayList<IndexFactory<?, ?>>();
+    private final ArrayList<Integer> locations = new ArrayList<Integer>();
+    private int pagesPerTransaction = 64;
+
+    public Compactor(TxPageFile pageFile) {
+        this.pageFile = pageFile;
+    }
+
+    /**
+     * Registers an index which gets its pages moved.
+     * 
+     * @param factory the factory the index gets opened with.
+     * @param location the location of the index.
+     */
+    public void addIndex(IndexFactory<?, ?> factory, int location) {
+        factories.add(factory);
+        locations.add(location);
+    }
+
+    /**
+     * Moves up to {@link #getPagesPerTransaction()} pages in a single transaction.
+     * 
+     * @return the number of pages which were moved, 0 once no more pages can be moved.
+     * @throws OptimisticUpdateException if a concurrent transaction updated the moved pages.
+     */
+    public int step() {
+        int limit = pageFile.getAllocatedPages();
+        Transaction tx = pageFile.tx();
+        int moved = 0;
+        try {
+            for (int i = 0; i < factories.size() && moved < pagesPerTransaction; i++) {
+                Index<?, ?> index = factories.get(i).open(tx, locations.get(i));
+                moved += index.relocate(limit, pagesPerTransaction - moved);
+            }
+        } catch (RuntimeException e) {
+            tx.rollback();
+            throw e;
+        }
+        tx.commit();
+        return moved;
+    }
+
+    /**
+     * Moves pages until no more pages can be moved, and then truncates the file.
+     * The pages freed by the moves become available once they get flushed, so
+     * the pages keep getting moved in rounds until a round can't move any.
+     * 
+     * @return the number of pages the file holds after the truncation, or -1 if
+     *         open snapshots kept it from being truncated.
+     */
+    public int compact() {
+        int moved;
+        do {
+            moved = 0;
+            int conflicts = 0;
+            while (true) {
+                int count;
+                try {
+                    count = step();
+                } catch (OptimisticUpdateException e) {
+                    if (++conflicts > MAX_CONFLICTS) {
+                        break;
+                    }
+                    continue;
+                }
+                if (count == 0) {
+                    break;
+                }
+                moved += count;
+            }
+            pageFile.flush();
+        } while (moved > 0);
+        return pageFile.truncate();
+    }
+
+    public int getPagesPerTransaction() {
+        return pagesPerTransaction;
+    }
+
+    /**
+     * Sets the maximum number of pages which get moved in a single transaction.
+     */
+    public void setPagesPerTransaction(int pagesPerTransaction) {
+        this.pagesPerTransaction = pagesPerTransaction;
+    }
+
+}
@@ -90,4 +90,15 @@ public interface Index<Key,Value> {
      */
     int getIndexLocation();
 
+    /**
+     * Moves the pages of the index which are at or past the limit into the free
+     * pages before it, so that the page file can then be truncated.  The index
+     * location itself does not move.
+     *
+     * @param limit the first page the index should not use.
+     * @param maxPages the maximum number of pages to move.
+     * @return the number of pages which were moved.
+     */
+    int relocate(int limit, int maxPages);
+
 }
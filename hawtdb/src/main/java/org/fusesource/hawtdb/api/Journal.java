@@ -1,16 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package org.fusesource.hawtdb.api;
 
 import java.nio.ByteBuffer;
 
 /**
- * Created by IntelliJ IDEA.
- * User: chirino
- * Date: 7/30/11
- * Time: 2:12 PM
- * To change this template use File | Settings | File Templates.
+ * An append only log of records.  Records only get written
+ * sequentially at the end of the journal, so appending is cheap
+ * and a single {@link #sync()} makes all the previously appended
+ * records durable.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 public interface Journal {
 
+    /**
+     * Appends a record to the journal.
+     *
+     * @param position where the record gets appended, it must be the
+     *        current end of the journal as returned by {@link #position()}.
+     * @param buffer the contents of the record.
+     * @param onComplete if not null, it gets run once the record has been
+     *        synced to disk.
+     */
     public void append(long position, ByteBuffer buffer, Runnable onComplete);
 
+    /**
+     * @return the position the next record will get appended at.
+     */
+    public long position();
+
+    /**
+     * Forces the appended records to disk and then runs their
+     * onComplete callbacks.
+     */
+    public void sync();
+
+    /**
+     * @return the contents of the record at the position, or null if there
+     *         is no complete record at the position.
+     */
+    public ByteBuffer read(long position);
+
+    /**
+     * @return the position of the record which follows the record at
+     *         the position.
+     */
+    public long next(long position);
+
+    /**
+     * Discards all the records of the journal.
+     */
+    public void truncate();
+
+    public void close();
+
 }
@@ -22,10 +22,14 @@ import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtdb.internal.io.ChannelFile;
 import org.fusesource.hawtdb.internal.io.MemoryMappedFileFactory;
+import org.fusesource.hawtdb.internal.io.StorageFile;
+import org.fusesource.hawtdb.internal.page.BestFitAllocator;
 import org.fusesource.hawtdb.internal.page.ExtentInputStream;
 import org.fusesource.hawtdb.internal.page.ExtentOutputStream;
 import org.fusesource.hawtdb.internal.page.HawtPageFile;
+import org.fusesource.hawtdb.internal.page.SimpleAllocator;
 import org.fusesource.hawtdb.internal.util.Ranges;
 
 /**
@@ -46,11 +50,14 @@ public class PageFileFactory {
 
     private final MemoryMappedFileFactory mappedFileFactory = new MemoryMappedFileFactory();
     private HawtPageFile pageFile;
+    private StorageFile storageFile;
 
     protected int headerSize = 0;
     protected short pageSize = 512;
     protected int maxPages = Integer.MAX_VALUE;
     protected boolean storeFreePages = true;
+    protected boolean useMemoryMapping = true;
+    protected Allocator.Policy allocationPolicy = Allocator.Policy.FIRST_FIT;
 
     public PageFile getPageFile() {
         return pageFile;
@@ -80,7 +87,12 @@ public class PageFileFactory {
                 boolean recover = storeFreePages && getFile().exists() && getFile().length() > 512;
 
                 try {
-                    mappedFileFactory.open();
+                    if( useMemoryMapping ) {
+                        mappedFileFactory.open();
+                        storageFile = mappedFileFactory.getMemoryMappedFile();
+                    } else {
+                        storageFile = new ChannelFile(getFile(), isReadOnly());
+                    }
                 } catch (IOException e) {
                     throw new IOPagingException(e);
                 }
@@ -89,7 +101,7 @@ public class PageFileFactory {
                 if( storeFreePages ) {
                     if( recover ) {
                         Buffer header = new Buffer(512);
-                        mappedFileFactory.getMemoryMappedFile().read(0, header);
+                        storageFile.read(0, header);
                         DataByteArrayInputStream his = new DataByteArrayInputStream(header);
 
                         Buffer magic = new Buffer(HAWT_DB_PAGE_FILE_MAGIC.length());
@@ -104,12 +116,20 @@ public class PageFileFactory {
                     }
                 }
 
-                pageFile = new HawtPageFile(mappedFileFactory.getMemoryMappedFile(), pageSize, headerSize, maxPages, storeFreePages);
+                Allocator allocator;
+                if( allocationPolicy == Allocator.Policy.BEST_FIT ) {
+                    allocator = new BestFitAllocator(maxPages);
+                } else {
+                    allocator = new SimpleAllocator(maxPages);
+                }
+                pageFile = new HawtPageFile(storageFile, pageSize, headerSize, allocator, storeFreePages);
 
                 if( freePageExtent >=0 ) {
                     DataInputStream is = new DataInputStream(new ExtentInputStream(pageFile, freePageExtent));
-                    pageFile.allocator().getFreeRanges().readExternal(is);
+                    Ranges freeRanges = new Ranges();
+                    freeRanges.readExternal(is);
                     is.close();
+                    allocator.setFreeRanges(freeRanges);
                 }
 
                 if( pageFile.storeFreePages && !isReadOnly() ) {
@@ -130,7 +150,7 @@ public class PageFileFactory {
         os.writeInt(headerSize);
         os.writeShort(pageSize);
         os.close();
-        mappedFileFactory.getMemoryMappedFile().write(0, os.toBuffer());
+        storageFile.write(0, os.toBuffer());
     }
 
     /**
@@ -151,7 +171,12 @@ public class PageFileFactory {
             pageFile.flush();
             pageFile = null;
         }        
-        mappedFileFactory.close();
+        if( useMemoryMapping ) {
+            mappedFileFactory.close();
+        } else if( storageFile!=null ) {
+            storageFile.close();
+        }
+        storageFile = null;
     }
 
     public int getHeaderSize() {
@@ -194,6 +219,60 @@ public class PageFileFactory {
         mappedFileFactory.setMappingSegementSize(mappingSegementSize);
     }
 
+    public int getPreallocateSegments() {
+        return mappedFileFactory.getPreallocateSegments();
+    }
+
+    /**
+     * Sets how many mapping segments get zero filled by a background thread ahead of
+     * the last segment in use, so that writes don't wait on the file system to grow
+     * the file.  Defaults to 0, which lets the file grow as it gets written.
+     */
+    public void setPreallocateSegments(int preallocateSegments) {
+        mappedFileFactory.setPreallocateSegments(preallocateSegments);
+    }
+
+    public int getMappingOverlap() {
+        return mappedFileFactory.getMappingOverlap();
+    }
+
+    /**
+     * Sets how many bytes of the next mapping segment also get mapped at the end of each
+     * segment, capped at the segment size.  Slices which cross a segment boundary by no
+     * more than the overlap then avoid creating a temporary mapping.  Defaults to 1 MB.
+     */
+    public void setMappingOverlap(int mappingOverlap) {
+        mappedFileFactory.setMappingOverlap(mappingOverlap);
+    }
+
+    public boolean isUseMemoryMapping() {
+        return useMemoryMapping;
+    }
+
+    /**
+     * When disabled, the file gets accessed using positional file channel reads and
+     * writes instead of being memory mapped.  That avoids page fault storms when the
+     * data set is much larger than memory.  The mapping segment size and preallocation
+     * settings only apply to memory mapped files.  Defaults to true.
+     */
+    public void setUseMemoryMapping(boolean useMemoryMapping) {
+        this.useMemoryMapping = useMemoryMapping;
+    }
+
+    public Allocator.Policy getAllocationPolicy() {
+        return allocationPolicy;
+    }
+
+    /**
+     * Sets how free pages get picked when allocating.  {@link Allocator.Policy#BEST_FIT}
+     * finds the smallest free range which is large enough in O(log n) time and leaves
+     * less fragmentation behind when allocations of mixed sizes get freed.
+     * Defaults to {@link Allocator.Policy#FIRST_FIT}.
+     */
+    public void setAllocationPolicy(Allocator.Policy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
+    }
+
     public boolean isStoreFreePages() {
         return storeFreePages;
     }
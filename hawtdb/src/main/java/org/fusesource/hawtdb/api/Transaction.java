@@ -50,6 +50,20 @@ public interface Transaction extends Paged {
      *      updated performed by another thread.
      */
     void commit() throws OptimisticUpdateException;
+
+    /**
+     * Commits the transaction without waiting for the updates to
+     * be synced to disk.  The returned future completes once they are.
+     * A read only transaction's future is already complete.
+     *
+     * The updates are synced once their batch fills up, when the page file
+     * is flushed, or within the flush delay when group commit is enabled.
+     *
+     * @throws OptimisticUpdateException
+     *      is thrown if the update would conflict with a concurrent
+     *      updated performed by another thread.
+     */
+    CommitFuture commitAsync() throws OptimisticUpdateException;
     
     /**
      * 
@@ -29,7 +29,9 @@ public interface TxPageFile {
     /**
      * If the transaction page file is configured to use a worker thread,
      * then this method performs a non-blocking flush otherwise this
-     * method blocks until the flush is completed.
+     * method blocks until the flush is completed.  When group commit
+     * is enabled, the flush is coalesced with other flush requests and
+     * this method does not block.
      *
      * The specified runnable is executed once the flush completes.
      *
@@ -37,4 +39,22 @@ public interface TxPageFile {
      */
     public void flush(Runnable onComplete);
 
+    /**
+     * @return the number of pages which are in use.  Once the pages past
+     *         this many pages get moved into the free pages in front of
+     *         them, the file can be truncated to this size.
+     * @see Compactor
+     */
+    public int getAllocatedPages();
+
+    /**
+     * Flushes the committed transactions and then shrinks the file by
+     * cutting off the free pages at its end.
+     *
+     * @return the number of pages the file holds after the truncation, or
+     *         -1 if it could not be truncated because open snapshots still
+     *         hold back some committed updates.
+     */
+    public int truncate();
+
 }
\ No newline at end of file
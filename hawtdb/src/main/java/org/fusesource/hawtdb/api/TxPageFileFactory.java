@@ -19,6 +19,7 @@ package org.fusesource.hawtdb.api;
 import java.io.File;
 import java.io.IOException;
 
+import org.fusesource.hawtdb.internal.io.FileJournal;
 import org.fusesource.hawtdb.internal.page.HawtPageFile;
 import org.fusesource.hawtdb.internal.page.HawtTxPageFile;
 import org.fusesource.hawtdb.internal.page.PageCache;
@@ -33,9 +34,20 @@ public class TxPageFileFactory {
 
     private final PageFileFactory pageFileFactory = new PageFileFactory();
     private HawtTxPageFile txPageFile;
+    private Journal journal;
     protected boolean drainOnClose;
     protected boolean sync = true;
     protected boolean useWorkerThread;
+    protected boolean trackUpdateHistory;
+    protected int batchSize = 1024;
+    protected boolean adaptiveBatchSize;
+    protected int minBatchSize = 64;
+    protected int maxBatchSize = 1024 * 16;
+    protected long flushDelay;
+    protected int encoderThreads;
+    protected File journalFile;
+    protected long journalCheckpointSize = 1024 * 1024 * 64;
+    protected int allocationChunkSize = 16;
     private PageCache pageCache = new ThreadLocalLFUPageCache(1024, 0.5f);
 
     public TxPageFileFactory() {
@@ -54,7 +66,14 @@ public class TxPageFileFactory {
         boolean existed = getFile().isFile();
         pageFileFactory.open();
         if (txPageFile == null) {
-            txPageFile = new HawtTxPageFile(this, (HawtPageFile) pageFileFactory.getPageFile());
+            if (journalFile != null) {
+                try {
+                    journal = new FileJournal(journalFile);
+                } catch (IOException e) {
+                    throw new IOPagingException(e);
+                }
+            }
+            txPageFile = new HawtTxPageFile(this, (HawtPageFile) pageFileFactory.getPageFile(), journal);
             if (existed) {
                 txPageFile.recover();
             } else {
@@ -72,6 +91,10 @@ public class TxPageFileFactory {
             txPageFile.close();
             txPageFile = null;
         }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
         pageFileFactory.close();
     }
 
@@ -99,10 +122,133 @@ public class TxPageFileFactory {
         return useWorkerThread;
     }
 
+    /**
+     * When enabled, full batches are handed off to a store thread which writes
+     * them and a sync thread which syncs, performs and releases them, so committing
+     * threads don't wait on the disk.  Disabled by default.
+     */
     public void setUseWorkerThread(boolean useWorkerThread) {
         this.useWorkerThread = useWorkerThread;
     }
 
+    public boolean isTrackUpdateHistory() {
+        return trackUpdateHistory;
+    }
+
+    /**
+     * Records a history of the operations applied to each page update.
+     * Only useful when debugging since it allocates on every page access.
+     * Defaults to false.
+     */
+    public void setTrackUpdateHistory(boolean trackUpdateHistory) {
+        this.trackUpdateHistory = trackUpdateHistory;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how many page updates are accumulated before the open batch
+     * gets stored to disk.  When adaptive batch sizing is enabled, this is
+     * the initial batch size.  Defaults to 1024.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isAdaptiveBatchSize() {
+        return adaptiveBatchSize;
+    }
+
+    /**
+     * Adjusts the batch size based on the observed commit rate and
+     * disk sync latency.  Only has an effect when sync is enabled.
+     * Defaults to false.
+     */
+    public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    /**
+     * The smallest batch size the adaptive batch sizing will use. Defaults to 64.
+     */
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * The largest batch size the adaptive batch sizing will use. Defaults to 16384.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Enables group commit when set to a value greater than 0.  Flush requests
+     * and commits with {@link Transaction#onFlush(Runnable)} callbacks are then
+     * coalesced and flushed by a background thread with a single disk sync,
+     * at most the given number of milliseconds after the first request.
+     * Defaults to 0, which disables group commit.
+     */
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    public int getEncoderThreads() {
+        return encoderThreads;
+    }
+
+    /**
+     * The number of threads used to encode the deferred updates of a batch
+     * (like the dirty index nodes) in parallel when the batch gets stored.
+     * The {@link PagedAccessor} objects used with the page file must be
+     * thread safe to enable it.  Defaults to 0, which encodes them serially.
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Enables the write ahead log mode when set.  The page updates of each
+     * stored batch then get appended to the journal file and only the journal
+     * needs to be synced, while the page file header and free list only get
+     * written at checkpoints.  Defaults to null, which stores the batches in
+     * the page file.
+     */
+    public void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public long getJournalCheckpointSize() {
+        return journalCheckpointSize;
+    }
+
+    /**
+     * Once the journal grows past this many bytes, the page file gets
+     * synced at the next opportunity so the journal can be truncated.
+     * Defaults to 64 MB.
+     */
+    public void setJournalCheckpointSize(long journalCheckpointSize) {
+        this.journalCheckpointSize = journalCheckpointSize;
+    }
+
     public File getFile() {
         return pageFileFactory.getFile();
     }
@@ -127,6 +273,66 @@ public class TxPageFileFactory {
         pageFileFactory.setMappingSegementSize(mappingSegementSize);
     }
 
+    public int getPreallocateSegments() {
+        return pageFileFactory.getPreallocateSegments();
+    }
+
+    /**
+     * @see PageFileFactory#setPreallocateSegments(int)
+     */
+    public void setPreallocateSegments(int preallocateSegments) {
+        pageFileFactory.setPreallocateSegments(preallocateSegments);
+    }
+
+    public int getMappingOverlap() {
+        return pageFileFactory.getMappingOverlap();
+    }
+
+    /**
+     * @see PageFileFactory#setMappingOverlap(int)
+     */
+    public void setMappingOverlap(int mappingOverlap) {
+        pageFileFactory.setMappingOverlap(mappingOverlap);
+    }
+
+    public boolean isUseMemoryMapping() {
+        return pageFileFactory.isUseMemoryMapping();
+    }
+
+    /**
+     * @see PageFileFactory#setUseMemoryMapping(boolean)
+     */
+    public void setUseMemoryMapping(boolean useMemoryMapping) {
+        pageFileFactory.setUseMemoryMapping(useMemoryMapping);
+    }
+
+    public Allocator.Policy getAllocationPolicy() {
+        return pageFileFactory.getAllocationPolicy();
+    }
+
+    /**
+     * @see PageFileFactory#setAllocationPolicy(Allocator.Policy)
+     */
+    public void setAllocationPolicy(Allocator.Policy allocationPolicy) {
+        pageFileFactory.setAllocationPolicy(allocationPolicy);
+    }
+
+    public int getAllocationChunkSize() {
+        return allocationChunkSize;
+    }
+
+    /**
+     * Sets how many pages a transaction reserves from the page file allocator at a
+     * time.  The pages the transaction allocates are carved out of its reservation
+     * so concurrent writers don't contend on the allocator for every page, and the
+     * pages it did not use are freed when it commits or rolls back.  Batch stores
+     * reserve their shadow pages the same way.  Set to 0 to allocate every page
+     * from the allocator.  Defaults to 16.
+     */
+    public void setAllocationChunkSize(int allocationChunkSize) {
+        this.allocationChunkSize = allocationChunkSize;
+    }
+
     public void setMaxFileSize(long size) {
         pageFileFactory.setMaxFileSize(size);
     }
@@ -151,6 +151,27 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return root().getLast(this);
     }
 
+    public int relocate(int limit, int maxPages) {
+        BTreeNode.Relocation<Key, Value> relocation = new BTreeNode.Relocation<Key, Value>(limit, maxPages);
+        root().relocate(this, relocation);
+        return relocation.moved;
+    }
+
+    /**
+     * Moves the root node into a free page before the limit.  The index
+     * then has to be opened at the returned location.
+     *
+     * @return the new location of the index, or -1 if there is no free page before the limit.
+     */
+    public int relocateRoot(int limit) {
+        BTreeNode<Key, Value> root = root();
+        return moveNode(root, limit) ? root.getPage() : -1;
+    }
+
+    boolean isRootStoredPast(int limit) {
+        return isStoredPast(root(), limit);
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Internal implementation methods
     // /////////////////////////////////////////////////////////////////
@@ -161,12 +182,16 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     // /////////////////////////////////////////////////////////////////
     // Internal methods made accessible to BTreeNode
     // /////////////////////////////////////////////////////////////////
-    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, Data<Key, Value> data) {
-        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1), data);
+    /**
+     * @param near the page of a node the new node gets accessed together with, it gets
+     *        allocated close to that page when possible.
+     */
+    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, int near, Data<Key, Value> data) {
+        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1, near), data);
     }
     
-    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent) {
-        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1));
+    BTreeNode<Key, Value> createNode(BTreeNode<Key, Value> parent, int near) {
+        return new BTreeNode<Key, Value>(parent, paged.allocator().alloc(1, near));
     }
     
     @SuppressWarnings("serial")
@@ -179,6 +204,15 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
      * @return false if page overflow occurred
      */
     boolean storeNode(BTreeNode<Key, Value> node) {
+        return storeNode(node, false);
+    }
+
+    /**
+     * @param packed if true the pages linked off the node's page are stored in
+     *        single page extents, so that they fit in the free pages between the used ones.
+     * @return false if page overflow occurred
+     */
+    boolean storeNode(BTreeNode<Key, Value> node, boolean packed) {
         if (deferredEncoding) {
             int size = BTreeNode.estimatedSize(this, node.data);
             size += 9; // The extent header.
@@ -192,13 +226,15 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         } else {
             
             if( node.storedInExtent ) {
-                DATA_ENCODER_DECODER.pagesLinked(paged, node.page);
+                Extent.freeLinked(paged, node.page);
             }
             
             if (node.isLeaf()) {
-                List<Integer> pages = DATA_ENCODER_DECODER.store(paged, node.page, node.data);
+                List<Integer> pages = packed ?
+                        DATA_ENCODER_DECODER.store(paged, node.page, node.data, (short) 1) :
+                        DATA_ENCODER_DECODER.store(paged, node.page, node.data);
                 if( !node.allowPageOverflow() && pages.size()>1 ) {
-                    DATA_ENCODER_DECODER.pagesLinked(paged, node.page);
+                    Extent.freeLinked(paged, node.page);
                     node.storedInExtent=false;
                     return false;
                 }
@@ -251,12 +287,64 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return node;
     }
     
+    /**
+     * @return true if the node's page, or a page linked off of it, is at or past the limit.
+     */
+    boolean isStoredPast(BTreeNode<Key, Value> node, int limit) {
+        if (node.page >= limit) {
+            return true;
+        }
+        // the linked pages of deferred nodes get placed when they are flushed.
+        if (!deferredEncoding && node.storedInExtent) {
+            for (int page : Extent.pagesLinked(paged, node.page)) {
+                if (page >= limit) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the node into the first free pages if there are enough of
+     * them before the limit.
+     *
+     * @return false if there are not enough free pages before the limit.
+     */
+    boolean moveNode(BTreeNode<Key, Value> node, int limit) {
+        int count = 1;
+        if (!deferredEncoding && node.storedInExtent) {
+            count += Extent.pagesLinked(paged, node.page).size();
+        }
+        int[] targets = new int[count];
+        for (int i = 0; i < count; i++) {
+            targets[i] = paged.allocator().alloc(1, 0);
+            if (targets[i] >= limit) {
+                for (int j = 0; j <= i; j++) {
+                    paged.allocator().free(targets[j], 1);
+                }
+                return false;
+            }
+        }
+        // The linked pages get allocated again next to the node's page when it's stored.
+        for (int i = 1; i < count; i++) {
+            paged.allocator().free(targets[i], 1);
+        }
+        free(node);
+        node.page = targets[0];
+        node.storedInExtent = false;
+        if (!storeNode(node, true)) {
+            throw new IndexException("Could not relocate btree node");
+        }
+        return true;
+    }
+
     void free( BTreeNode<Key, Value> node ) {
         if( deferredEncoding ) {
             paged.clear(DATA_ENCODER_DECODER, node.page);
         } else {
             if ( node.storedInExtent ) {
-                DATA_ENCODER_DECODER.pagesLinked(paged, node.page);
+                Extent.freeLinked(paged, node.page);
             }
         }
         paged.free(node.page);
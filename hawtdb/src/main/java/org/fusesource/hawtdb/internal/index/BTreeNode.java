@@ -330,6 +330,7 @@ public final class BTreeNode<Key, Value> {
                     // This is cause branches are never really empty.. they just
                     // go down to 1 child..
                     data = data.children(arrayUpdate(data.children, idx, child.data.children[0]));
+                    index.free(child);
                 } else {
 
                     // The child was a leaf. Then we need to actually remove it
@@ -534,8 +535,8 @@ public final class BTreeNode<Key, Value> {
         if (parent == null) {
 
             // This can only happen if this is the root
-            BTreeNode<Key, Value> lNode = index.createNode(this);
-            BTreeNode<Key, Value> rNode = index.createNode(this);
+            BTreeNode<Key, Value> lNode = index.createNode(this, page);
+            BTreeNode<Key, Value> rNode = index.createNode(this, lNode.getPage());
 
             if (data.isBranch()) {
                 rNode.data = data.branch(rightKeys, rightChildren);
@@ -557,10 +558,10 @@ public final class BTreeNode<Key, Value> {
             BTreeNode<Key, Value> rNode;
 
             if (data.isBranch()) {
-                rNode = index.createNode(parent, data.branch(rightKeys, rightChildren));
+                rNode = index.createNode(parent, page, data.branch(rightKeys, rightChildren));
                 data = data.branch(leftKeys, leftChildren);
             } else {
-                rNode = index.createNode(parent, data.leaf(rightKeys, rightValues, data.next));
+                rNode = index.createNode(parent, page, data.leaf(rightKeys, rightValues, data.next));
                 data = data.leaf(leftKeys, leftValues, rNode.getPage());
             }
 
@@ -610,6 +611,68 @@ public final class BTreeNode<Key, Value> {
         }
     }
     
+    /**
+     * Tracks the nodes moved by a relocation.
+     */
+    static final class Relocation<Key, Value> {
+        final int limit;
+        final int maxPages;
+        int moved;
+        boolean stopped;
+        // The last leaf visited, its next pointer has to follow the next leaf when that one moves.
+        BTreeNode<Key, Value> previousLeaf;
+
+        Relocation(int limit, int maxPages) {
+            this.limit = limit;
+            this.maxPages = maxPages;
+        }
+    }
+
+    /**
+     * Moves the descendants which are stored at or past the relocation limit
+     * into free pages before it.  The leaves get visited in order so that the
+     * next pointer of the leaf in front of a moved leaf can be updated.
+     */
+    void relocate(BTreeIndex<Key, Value> index, Relocation<Key, Value> relocation) {
+        if (!data.isBranch()) {
+            return;
+        }
+        int[] children = null;
+        for (int i = 0; i < data.children.length && !relocation.stopped; i++) {
+            BTreeNode<Key, Value> child = getChild(index, i);
+            if (index.isStoredPast(child, relocation.limit)) {
+                if (relocation.moved >= relocation.maxPages || !index.moveNode(child, relocation.limit)) {
+                    relocation.stopped = true;
+                    break;
+                }
+                if (index.isStoredPast(child, relocation.limit)) {
+                    // a concurrent allocation took the pages its linked pages were meant for.
+                    relocation.stopped = true;
+                } else {
+                    relocation.moved++;
+                }
+                if (children == null) {
+                    children = data.children.clone();
+                }
+                children[i] = child.page;
+                if (child.isLeaf() && relocation.previousLeaf != null) {
+                    BTreeNode<Key, Value> previous = relocation.previousLeaf;
+                    previous.data = previous.data.next(child.page);
+                    index.storeNode(previous, true);
+                }
+            }
+            if (child.isBranch()) {
+                child.relocate(index, relocation);
+            } else {
+                relocation.previousLeaf = child;
+            }
+        }
+        if (children != null) {
+            data = data.children(children);
+            index.storeNode(this);
+        }
+    }
+
     public int size(BTreeIndex<Key, Value> index) {
         int rc=0;
         
@@ -48,6 +48,12 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
     private final boolean deferredEncoding;
 
     private Buckets<Key,Value> buckets;
+    /**
+     * The opened bucket indexes by location.  They use the paged object of this
+     * index, so they can't be kept in the buckets which other transactions can
+     * get from the page cache.
+     */
+    private final ConcurrentMap<Integer, SortedIndex<Key, Value>> bins = new ConcurrentHashMap<Integer, SortedIndex<Key, Value>>();
 
     public HashIndex(Paged paged, int page, HashIndexFactory<Key,Value> factory) {
         this.paged = paged;
@@ -188,6 +194,32 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         return page;
     }
 
+    public int relocate(int limit, int maxPages) {
+        int moved = 0;
+        boolean changed = false;
+        for (int i = 0; i < buckets.capacity && moved < maxPages; i++) {
+            BTreeIndex<Key, Value> bin = (BTreeIndex<Key, Value>) buckets.bucket(this, i);
+            moved += bin.relocate(limit, maxPages - moved);
+            if (moved < maxPages && bin.isRootStoredPast(limit)) {
+                int location = bin.relocateRoot(limit);
+                if (location < 0) {
+                    break;
+                }
+                if (!changed) {
+                    // other transactions might share the cached buckets.
+                    buckets = buckets.copy();
+                    changed = true;
+                }
+                buckets.bucketsIndex[i] = location;
+                moved++;
+            }
+        }
+        if (changed) {
+            storeBuckets();
+        }
+        return moved;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Helper methods Methods
     // /////////////////////////////////////////////////////////////////
@@ -257,8 +289,6 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         int increaseThreshold;
         int decreaseThreshold;
 
-        final ConcurrentMap<Integer, SortedIndex<Key, Value>> buckets = new ConcurrentHashMap<Integer, SortedIndex<Key, Value>>();
-        
         private void calcThresholds(HashIndex<Key,Value> index) {
             increaseThreshold = (capacity * index.loadFactor)/100;
             decreaseThreshold = (capacity * index.loadFactor * index.loadFactor ) / 20000;
@@ -282,7 +312,7 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         }
         
         public void clear(HashIndex<Key,Value> index) {
-            this.buckets.clear();
+            index.bins.clear();
             for (int i = 0; i < index.buckets.capacity; i++) {
                 index.buckets.bucket(index, i).clear();
             }
@@ -290,6 +320,16 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
             index.buckets.calcThresholds(index);
         }
         
+        Buckets<Key,Value> copy() {
+            Buckets<Key,Value> rc = new Buckets<Key,Value>();
+            rc.active = active;
+            rc.capacity = capacity;
+            rc.bucketsIndex = bucketsIndex.clone();
+            rc.increaseThreshold = increaseThreshold;
+            rc.decreaseThreshold = decreaseThreshold;
+            return rc;
+        }
+
         SortedIndex<Key,Value> bucket(HashIndex<Key,Value> index, int bucket) {
             return getOrOpen(index, bucketsIndex[bucket]);
         }
@@ -304,10 +344,10 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         }
         
         private SortedIndex<Key,Value> getOrOpen(HashIndex<Key,Value> hash, int location) {
-            SortedIndex<Key,Value> result = buckets.get(location);
+            SortedIndex<Key,Value> result = hash.bins.get(location);
             if (result == null) {
                 SortedIndex<Key,Value> bin = hash.BIN_FACTORY.open(hash.paged, location);
-                result = buckets.putIfAbsent(location, bin);
+                result = hash.bins.putIfAbsent(location, bin);
                 if (result == null) {
                     result = bin;
                 }
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pools direct buffers by size so that the file channel I/O does not
+ * allocate a new direct buffer for every slice.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BufferPool {
+
+    private final int maxPooled;
+    private final ConcurrentHashMap<Integer, ArrayBlockingQueue<ByteBuffer>> pools = new ConcurrentHashMap<Integer, ArrayBlockingQueue<ByteBuffer>>();
+
+    /**
+     * @param maxPooled the maximum number of idle buffers kept for each size.
+     */
+    BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer with the given capacity.
+     */
+    ByteBuffer acquire(int size) {
+        ByteBuffer rc = pool(size).poll();
+        if (rc == null) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        rc.clear();
+        return rc;
+    }
+
+    /**
+     * Returns a buffer obtained with {@link #acquire(int)} to the pool.
+     */
+    void release(ByteBuffer buffer) {
+        // dropped if the pool is full.
+        pool(buffer.capacity()).offer(buffer);
+    }
+
+    private ArrayBlockingQueue<ByteBuffer> pool(int size) {
+        Integer key = size;
+        ArrayBlockingQueue<ByteBuffer> rc = pools.get(key);
+        if (rc == null) {
+            rc = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+            ArrayBlockingQueue<ByteBuffer> previous = pools.putIfAbsent(key, rc);
+            if (previous != null) {
+                rc = previous;
+            }
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.IOPagingException;
+
+/**
+ * Provides access to a file using positional {@link FileChannel} reads
+ * and writes.  Unlike a {@link MemoryMappedFile}, the file contents only
+ * get cached by the OS page cache, so a data set much larger than memory
+ * does not cause page fault storms or unpredictable write back.
+ * 
+ * Slices are copies of the file region held in pooled direct buffers.
+ * Writable slices get written back to the file when they are unsliced.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final public class ChannelFile implements StorageFile {
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final BufferPool pool = new BufferPool(MAX_POOLED_BUFFERS);
+    /** The outstanding slices, keyed by identity */
+    private final IdentityHashMap<ByteBuffer, Slice> slices = new IdentityHashMap<ByteBuffer, Slice>();
+
+    private static final class Slice {
+        final ByteBuffer buffer;
+        final long position;
+        final boolean readOnly;
+
+        Slice(ByteBuffer buffer, long position, boolean readOnly) {
+            this.buffer = buffer;
+            this.position = position;
+            this.readOnly = readOnly;
+        }
+    }
+
+    public ChannelFile(File file, boolean readOnly) throws IOException {
+        file.getCanonicalFile().getParentFile().mkdirs();
+        this.readOnly = readOnly;
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    public void read(long position, byte[] data) throws IOPagingException {
+        read(position, data, 0, data.length);
+    }
+
+    public void read(long position, Buffer data) throws IOPagingException {
+        read(position, data.data, data.offset, data.length);
+    }
+
+    public void read(long position, byte[] data, int offset, int length) throws IOPagingException {
+        read(position, ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Fills the buffer.  The bytes past the end of the file read as zeros
+     * like they do when the file is memory mapped.
+     */
+    private void read(long position, ByteBuffer buffer) throws IOPagingException {
+        try {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    while (buffer.hasRemaining()) {
+                        buffer.put((byte) 0);
+                    }
+                    return;
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void write(long position, byte[] data) throws IOPagingException {
+        write(position, data, 0, data.length);
+    }
+
+    public void write(long position, Buffer data) throws IOPagingException {
+        write(position, data.data, data.offset, data.length);
+    }
+
+    public void write(long position, byte[] data, int offset, int length) throws IOPagingException {
+        write(position, ByteBuffer.wrap(data, offset, length));
+    }
+
+    public void write(long position, ByteBuffer data) throws IOPagingException {
+        if (readOnly) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public ByteBuffer slice(boolean readOnly, long position, int length) throws IOPagingException {
+        if (this.readOnly && !readOnly) {
+            throw new IOPagingException("read only");
+        }
+        ByteBuffer buffer = pool.acquire(length);
+        read(position, buffer);
+        buffer.flip();
+
+        ByteBuffer rc = readOnly ? buffer.asReadOnlyBuffer() : buffer;
+        synchronized (slices) {
+            slices.put(rc, new Slice(buffer, position, readOnly));
+        }
+        return rc;
+    }
+
+    public void unslice(ByteBuffer buffer) {
+        Slice slice;
+        synchronized (slices) {
+            slice = slices.remove(buffer);
+        }
+        if (slice == null) {
+            return;
+        }
+        if (!slice.readOnly) {
+            // the caller may have moved the position around, write back the whole region.
+            ByteBuffer data = slice.buffer.duplicate();
+            data.clear();
+            write(slice.position, data);
+        }
+        pool.release(slice.buffer);
+    }
+
+    public void sync() throws IOPagingException {
+        if (readOnly) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public long truncate(long length) throws IOPagingException {
+        if (readOnly) {
+            throw new IOPagingException("read only");
+        }
+        try {
+            if (length < channel.size()) {
+                channel.truncate(length);
+            }
+            return channel.size();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void close() throws IOPagingException {
+        if (!readOnly) {
+            sync();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.api.Journal;
+
+/**
+ * A {@link Journal} which appends the records to a file.  Each record
+ * is prefixed with its length and a CRC32 of its contents so that a
+ * record which was only partially written before a failure is not read back.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final public class FileJournal implements Journal {
+
+    /** The length and checksum stored in front of each record */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile long position;
+    private ArrayList<Runnable> pending = new ArrayList<Runnable>();
+
+    public FileJournal(File file) throws IOException {
+        file.getCanonicalFile().getParentFile().mkdirs();
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.position = channel.size();
+    }
+
+    synchronized public void append(long position, ByteBuffer buffer, Runnable onComplete) {
+        if (position != this.position) {
+            throw new IllegalArgumentException("Records can only be appended at the end of the journal: " + this.position);
+        }
+        int length = buffer.remaining();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(length);
+        header.putInt(checksum(buffer));
+        header.flip();
+        try {
+            write(header, position);
+            write(buffer, position + RECORD_HEADER_SIZE);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        this.position = position + RECORD_HEADER_SIZE + length;
+        if (onComplete != null) {
+            pending.add(onComplete);
+        }
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 checksum = new CRC32();
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            checksum.update(data, 0, data.length);
+        }
+        return (int) checksum.getValue();
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void sync() {
+        // Only the records appended before the force starts are known to be on disk after it.
+        ArrayList<Runnable> callbacks;
+        synchronized (this) {
+            callbacks = pending;
+            pending = new ArrayList<Runnable>();
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+        for (Runnable runnable : callbacks) {
+            runnable.run();
+        }
+    }
+
+    public ByteBuffer read(long position) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            if (!read(header, position)) {
+                return null;
+            }
+            header.flip();
+            int length = header.getInt();
+            int expectedChecksum = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > channel.size()) {
+                return null;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            if (!read(record, position + RECORD_HEADER_SIZE)) {
+                return null;
+            }
+            record.flip();
+            if (checksum(record) != expectedChecksum) {
+                return null;
+            }
+            return record;
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private boolean read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    public long next(long position) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            if (!read(header, position)) {
+                throw new IOPagingException("There is no record at: " + position);
+            }
+            header.flip();
+            return position + RECORD_HEADER_SIZE + header.getInt();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    public void truncate() {
+        // The records are not needed anymore, so their callbacks can complete.
+        ArrayList<Runnable> callbacks;
+        synchronized (this) {
+            try {
+                channel.truncate(0);
+                // the records must not come back once new ones get appended.
+                channel.force(true);
+            } catch (IOException e) {
+                throw new IOPagingException(e);
+            }
+            position = 0;
+            callbacks = pending;
+            pending = new ArrayList<Runnable>();
+        }
+        for (Runnable runnable : callbacks) {
+            runnable.run();
+        }
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ position: " + position + " }";
+    }
+
+}
@@ -28,7 +28,15 @@ import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.fusesource.hawtdb.api.IOPagingException;
 import org.fusesource.hawtdb.util.IOHelper;
@@ -39,26 +47,110 @@ import org.fusesource.hawtbuf.Buffer;
  * direct buffers which mapped to the files.  Multiple direct buffers
  * are used to deal with OS and Java restrictions.
  * 
+ * Only the segments which were written to since the last sync
+ * get forced to disk when the file is synced.
+ * 
+ * The segments get mapped lazily.  The mapped segments are held in
+ * a copy on write array so that threads accessing an already mapped
+ * segment never lock.
+ * 
+ * Mapping a segment past the end of the file only extends the file,
+ * the disk space then gets allocated page by page as it's written.  When
+ * preallocation is enabled, the segments ahead of the last mapped segment
+ * get zero filled by a background thread so that the writes don't pay
+ * for the file growth.
+ * 
+ * Each segment can be mapped with an overlap into the next segment, so
+ * that slices and reads which straddle a segment boundary by no more than
+ * the overlap can still use the segment's mapping directly.
+ * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-final public class MemoryMappedFile {
+final public class MemoryMappedFile implements StorageFile {
 	
 	private final ByteBufferReleaser BYTE_BUFFER_RELEASER = createByteBufferReleaser();
 
 	private final int bufferSize;
+	/** How many bytes of the next segment get mapped at the end of each segment */
+	private final int overlap;
     private final boolean readOnly;
-    private final ArrayList<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>(10);
+    private final AtomicReference<Segment[]> segments = new AtomicReference<Segment[]>(new Segment[0]);
 	private final FileChannel channel;
 	private final FileDescriptor fd;
-    private final HashSet<ByteBuffer> bounderyBuffers = new HashSet<ByteBuffer>(10);
+    /** The buffers mapped for the slices which span segments, keyed by identity */
+    private final IdentityHashMap<ByteBuffer, Boolean> bounderyBuffers = new IdentityHashMap<ByteBuffer, Boolean>(10);
+    private final AtomicInteger bounderyBufferCount = new AtomicInteger();
+    /** The writable slices which have not been unsliced yet */
+    private final AtomicInteger writableSlices = new AtomicInteger();
+    /** How many segments get zero filled ahead of the last mapped segment */
+    private final int preallocateSegments;
+    /** Zero fills the segments, null if preallocation is disabled */
+    private final ExecutorService preallocator;
+    /** Guards allocatedSegments and fillingSegment, and the installing of new segments */
+    private final Object PREALLOCATE_MUTEX = new Object();
+    /** The preallocator has visited the segments below this index, it skips the mapped ones */
+    private int allocatedSegments;
+    /** The segment being zero filled, it can't be mapped until it's done. -1 if none */
+    private int fillingSegment = -1;
+    /** The preallocator allocates the segments up to this index */
+    private final AtomicInteger preallocateTarget = new AtomicInteger(-1);
+    private volatile boolean closed;
+    private static final int PREALLOCATE_CHUNK_SIZE = 1024 * 64;
+
+	/**
+	 * A mapped region of the file.
+	 */
+	private static final class Segment {
+		final MappedByteBuffer buffer;
+		/** The bytes written to the segment since it was last forced, 0 if it's clean */
+		final AtomicLong dirtyBytes = new AtomicLong();
+
+		Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
 
 
 	public MemoryMappedFile(File file, int bufferSize, boolean readOnly) throws IOException {
+		this(file, bufferSize, readOnly, 0);
+	}
+
+	/**
+	 * @param preallocateSegments the number of segments to allocate ahead of
+	 *        the last mapped segment, 0 to disable preallocation.
+	 */
+	public MemoryMappedFile(File file, int bufferSize, boolean readOnly, int preallocateSegments) throws IOException {
+		this(file, bufferSize, readOnly, preallocateSegments, 0);
+	}
+
+	/**
+	 * @param overlap the number of bytes of the following segment which also get
+	 *        mapped by each segment.
+	 */
+	public MemoryMappedFile(File file, int bufferSize, boolean readOnly, int preallocateSegments, int overlap) throws IOException {
 		this.bufferSize = bufferSize;
+		this.overlap = overlap;
         this.readOnly = readOnly;
         RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
 		this.fd = randomAccessFile.getFD();
 		this.channel = randomAccessFile.getChannel();
+
+		if (preallocateSegments > 0 && !readOnly) {
+			this.preallocateSegments = preallocateSegments;
+			allocatedSegments = (int) ((channel.size() + bufferSize - 1) / bufferSize);
+			preallocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread rc = new Thread(r);
+					rc.setName("HawtDB Preallocator");
+					rc.setDaemon(true);
+					return rc;
+				}
+			});
+			preallocate(allocatedSegments - 1);
+		} else {
+			this.preallocateSegments = 0;
+			preallocator = null;
+		}
 	}
 
 	public void read(long position, byte[] data) throws IOPagingException {
@@ -72,7 +164,7 @@ final public class MemoryMappedFile {
 	public void read(long position, byte[] data, int offset, int length) throws IOPagingException {
 		int bufferIndex = (int) (position / bufferSize);
 		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
+		ByteBuffer buffer = loadBuffer(bufferIndex, segmentEnd(bufferOffset, length));
 		buffer = position(buffer, bufferOffset);
 		int remaining = buffer.remaining();
 		while (length > remaining) {
@@ -80,8 +172,8 @@ final public class MemoryMappedFile {
 			offset += remaining;
 			length -= remaining;
 			bufferIndex++;
-			buffer = loadBuffer(bufferIndex).duplicate();
-
+			buffer = position(loadBuffer(bufferIndex, segmentEnd(0, length)), 0);
+			remaining = buffer.remaining();
 		}
 		buffer.get(data, offset, length);
 	}
@@ -89,8 +181,8 @@ final public class MemoryMappedFile {
 	public ByteBuffer read(long position, int length) throws IOPagingException {
 		int bufferIndex = (int) (position / bufferSize);
 		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
-		buffer = position(buffer, bufferOffset);
+		ByteBuffer buffer = loadBuffer(bufferIndex, mappingEnd(bufferOffset, length));
+		buffer = (ByteBuffer) buffer.duplicate().position(bufferOffset);
 		int remaining = buffer.remaining();
 		if (length > remaining) {
 			// In the case we can't contiguously read the entire buffer.. 
@@ -109,24 +201,46 @@ final public class MemoryMappedFile {
         }
         int bufferIndex = (int) (position / bufferSize);
         int bufferOffset = (int) (position % bufferSize);
-        ByteBuffer buffer = loadBuffer(bufferIndex);
-        buffer = position(buffer, bufferOffset);
+        // the slice can extend into the overlap.
+        ByteBuffer buffer = loadBuffer(bufferIndex, mappingEnd(bufferOffset, length));
+        buffer = (ByteBuffer) buffer.duplicate().position(bufferOffset);
         int remaining = buffer.remaining();
+        if( !readOnly ) {
+            // The caller writes to the slice after we mark it dirty, the sync
+            // keeps it dirty until the slice is unsliced.
+            writableSlices.incrementAndGet();
+            dirty(position, length);
+        }
         if (length > remaining) {
             try {
                 buffer = channel.map( readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, position, length);
-                bounderyBuffers.add(buffer);
+                synchronized (bounderyBuffers) {
+                    bounderyBuffers.put(buffer, Boolean.TRUE);
+                }
+                bounderyBufferCount.incrementAndGet();
                 return buffer;
             } catch (IOException e) {
                 throw new IOPagingException(e);
             }
         }
-        return ((ByteBuffer) buffer.limit(buffer.position()+length)).slice();
+        buffer = ((ByteBuffer) buffer.limit(buffer.position()+length)).slice();
+        return readOnly ? buffer.asReadOnlyBuffer() : buffer;
     }
     
     public void unslice(ByteBuffer buffer) {
-        if( bounderyBuffers.remove(buffer) ) {
-            BYTE_BUFFER_RELEASER.release(buffer);
+        if( !buffer.isReadOnly() ) {
+            writableSlices.decrementAndGet();
+        }
+        // Most slices are not boundery buffers, so avoid locking when there are none.
+        if( bounderyBufferCount.get() > 0 ) {
+            boolean removed;
+            synchronized (bounderyBuffers) {
+                removed = bounderyBuffers.remove(buffer) != null;
+            }
+            if( removed ) {
+                bounderyBufferCount.decrementAndGet();
+                BYTE_BUFFER_RELEASER.release(buffer);
+            }
         }
     }
 
@@ -160,6 +274,8 @@ final public class MemoryMappedFile {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
+        // maps the segments first so they don't get preallocated over the transfer.
+        dirty(position, (int) transfer.length);
 		try {
             channel.position(position);
             transfer.writeTo(channel);
@@ -186,9 +302,10 @@ final public class MemoryMappedFile {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
+		int length = data.remaining();
 		int bufferIndex = (int) (position / bufferSize);
 		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
+		ByteBuffer buffer = loadBuffer(bufferIndex, segmentEnd(bufferOffset, length));
 		buffer = position(buffer, bufferOffset);
 		int remaining = buffer.remaining();
 		while (data.remaining() > remaining) {
@@ -197,9 +314,11 @@ final public class MemoryMappedFile {
 			buffer.put(data);
 			data.limit(l);
 			bufferIndex++;
-			buffer = loadBuffer(bufferIndex).duplicate();
+			buffer = position(loadBuffer(bufferIndex, segmentEnd(0, data.remaining())), 0);
+			remaining = buffer.remaining();
 		}
 		buffer.put(data);	
+		dirty(position, length);
 	}
 
 	public void write(long position, byte[] data, int offset, int length)
@@ -207,9 +326,11 @@ final public class MemoryMappedFile {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
+		long start = position;
+		int total = length;
 		int bufferIndex = (int) (position / bufferSize);
 		int bufferOffset = (int) (position % bufferSize);
-		ByteBuffer buffer = loadBuffer(bufferIndex);
+		ByteBuffer buffer = loadBuffer(bufferIndex, segmentEnd(bufferOffset, length));
 		buffer = position(buffer, bufferOffset);
 		int remaining = buffer.remaining();
 		while (length > remaining) {
@@ -217,42 +338,213 @@ final public class MemoryMappedFile {
 			offset += remaining;
 			length -= remaining;
 			bufferIndex++;
-			buffer = loadBuffer(bufferIndex).duplicate();
-
+			buffer = position(loadBuffer(bufferIndex, segmentEnd(0, length)), 0);
+			remaining = buffer.remaining();
 		}
 		buffer.put(data, offset, length);
+		dirty(start, total);
+	}
+
+	/**
+	 * Marks the segments which hold the written bytes as dirty.  Must be
+	 * called after the bytes are written so that a concurrent sync which
+	 * does not see the mark has forced them already.
+	 */
+	private void dirty(long position, int length) {
+		while (length > 0) {
+			int bufferIndex = (int) (position / bufferSize);
+			int count = (int) Math.min(length, bufferSize - (position % bufferSize));
+			loadSegment(bufferIndex, 0).dirtyBytes.addAndGet(count);
+			position += count;
+			length -= count;
+		}
 	}
 
+	/**
+	 * The copying reads and writes stay within the segment, so that the
+	 * next segment gets mapped before it's written to.
+	 */
 	private ByteBuffer position(ByteBuffer buffer, int offset) {
-		return (ByteBuffer) buffer.duplicate().position(offset);
+		return (ByteBuffer) buffer.duplicate().limit(Math.min(bufferSize, buffer.capacity())).position(offset);
+	}
+
+	/**
+	 * @return how much of a segment has to be mapped for the copying reads and
+	 *         writes of the bytes from the offset within the segment.
+	 */
+	private int segmentEnd(int offset, int length) {
+		return (int) Math.min((long) offset + length, bufferSize);
+	}
+
+	/**
+	 * @return how much of a segment has to be mapped for the bytes from the
+	 *         offset within the segment to be read through its overlap.
+	 */
+	private int mappingEnd(int offset, int length) {
+		return (int) Math.min((long) offset + length, bufferSize + overlap);
+	}
+
+	private MappedByteBuffer loadBuffer(int index, int end) throws IOPagingException {
+		return loadSegment(index, end).buffer;
+	}
+
+	/**
+	 * @param end how many bytes from the start of the segment have to be mapped.  The
+	 *        last segment can be mapped short after a truncation, it gets mapped again
+	 *        in full, growing the file, once bytes past its mapping get used.
+	 */
+	private Segment loadSegment(int index, int end) throws IOPagingException {
+		Segment[] current = segments.get();
+		if (index < current.length && current[index] != null && current[index].buffer.capacity() >= end) {
+			return current[index];
+		}
+		return mapSegment(index, end);
 	}
 
-	private MappedByteBuffer loadBuffer(int index) throws IOPagingException {
-		while (index >= buffers.size()) {
-			buffers.add(null);
+	/**
+	 * Maps the segment and installs it in a copy of the segment array.  If
+	 * another thread installs the segment first, its mapping gets used instead.
+	 */
+	private Segment mapSegment(int index, int end) throws IOPagingException {
+		if (preallocator == null) {
+			return installSegment(index, end);
+		}
+		Segment segment;
+		synchronized (PREALLOCATE_MUTEX) {
+			// the preallocator must not zero fill it once it's mapped.
+			while (fillingSegment == index) {
+				try {
+					PREALLOCATE_MUTEX.wait();
+				} catch (InterruptedException e) {
+					throw new IOPagingException(e);
+				}
+			}
+			segment = installSegment(index, end);
+		}
+		preallocate(index);
+		return segment;
+	}
+
+	private Segment installSegment(int index, int end) throws IOPagingException {
+		Segment segment = map(index, bufferSize + overlap);
+		while (true) {
+			Segment[] current = segments.get();
+			Segment previous = index < current.length ? current[index] : null;
+			if (previous != null && previous.buffer.capacity() >= end) {
+				BYTE_BUFFER_RELEASER.release(segment.buffer);
+				return previous;
+			}
+			Segment[] update = new Segment[Math.max(current.length, index + 1)];
+			System.arraycopy(current, 0, update, 0, current.length);
+			update[index] = segment;
+			if (segments.compareAndSet(current, update)) {
+				if (previous != null) {
+					// other threads might still be using the short mapping, so it
+					// gets unmapped once it's collected.
+					segment.dirtyBytes.addAndGet(previous.dirtyBytes.get());
+				}
+				return segment;
+			}
+		}
+	}
+
+	/**
+	 * Maps the first bytes of a segment, extending the file if it's shorter.
+	 */
+	private Segment map(int index, int size) throws IOPagingException {
+		try {
+            long position = ((long)index)*bufferSize;
+            return new Segment(channel.map(MapMode.READ_WRITE, position, size));
+        } catch (IllegalArgumentException e) {
+            throw new IOPagingException(e);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+	}
+
+	/**
+	 * Requests that the segments up to preallocateSegments past the index get allocated.
+	 */
+	private void preallocate(int index) {
+		int target = index + preallocateSegments;
+		while (true) {
+			int current = preallocateTarget.get();
+			if (current >= target) {
+				return;
+			}
+			if (preallocateTarget.compareAndSet(current, target)) {
+				break;
+			}
+		}
+		try {
+			preallocator.execute(new Runnable() {
+				public void run() {
+					fill();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// we are closing.
 		}
-		MappedByteBuffer buffer = buffers.get(index);
-		if (buffer == null) {
+	}
+
+	private void fill() {
+		ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_CHUNK_SIZE);
+		while (!closed) {
+			int index;
+			synchronized (PREALLOCATE_MUTEX) {
+				if (allocatedSegments > preallocateTarget.get()) {
+					return;
+				}
+				index = allocatedSegments++;
+				Segment[] current = segments.get();
+				if (index < current.length && current[index] != null) {
+					continue;
+				}
+				fillingSegment = index;
+			}
 			try {
-                long position = ((long)index)*bufferSize;
-                buffer = channel.map(MapMode.READ_WRITE, position, bufferSize);
-            } catch (IllegalArgumentException e) {
-                throw new IOPagingException(e);
-            } catch (IOException e) {
-                throw new IOPagingException(e);
-            }
-			buffers.set(index, buffer);
+				long position = ((long) index) * bufferSize;
+				long end = position + bufferSize;
+				while (position < end && !closed) {
+					zeros.clear();
+					zeros.limit((int) Math.min(zeros.capacity(), end - position));
+					position += channel.write(zeros, position);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			} finally {
+				synchronized (PREALLOCATE_MUTEX) {
+					fillingSegment = -1;
+					PREALLOCATE_MUTEX.notifyAll();
+				}
+			}
 		}
-		return buffer;
 	}
 
 	public void sync() throws IOPagingException {
         if( this.readOnly ) {
             throw new IOPagingException("read only");
         }
-		for (MappedByteBuffer buffer : buffers) {
-			if (buffer != null) {
-				buffer.force();
+		ArrayList<Segment> dirty = new ArrayList<Segment>();
+		ArrayList<Long> dirtyBytes = new ArrayList<Long>();
+		for (Segment segment : segments.get()) {
+			if (segment != null) {
+				long bytes = segment.dirtyBytes.getAndSet(0);
+				if (bytes > 0) {
+					dirty.add(segment);
+					dirtyBytes.add(bytes);
+				}
+			}
+		}
+
+		// Writable slices might still get written to after the force, so
+		// their segments have to stay dirty until the next sync.
+		boolean slicing = writableSlices.get() > 0;
+		for (int i = 0; i < dirty.size(); i++) {
+			dirty.get(i).buffer.force();
+			if (slicing) {
+				dirty.get(i).dirtyBytes.addAndGet(dirtyBytes.get(i));
 			}
 		}
         try {
@@ -261,15 +553,130 @@ final public class MemoryMappedFile {
             throw new IOPagingException(e);
         }
 	}
+
+	/**
+	 * Unmaps the segments past the length and shrinks the file.  The
+	 * mappings which reach past the length, like the last kept segment and
+	 * the overlap of the one in front of it, get replaced with mappings
+	 * which end at the length.
+	 */
+	public long truncate(long length) throws IOPagingException {
+        if( this.readOnly ) {
+            throw new IOPagingException("read only");
+        }
+		try {
+			long size = channel.size();
+			if (length >= size) {
+				return size;
+			}
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+		int keep = (int) ((length + bufferSize - 1) / bufferSize);
+
+		if (preallocator != null) {
+			synchronized (PREALLOCATE_MUTEX) {
+				// the preallocator would extend the file again.
+				while (fillingSegment >= keep) {
+					try {
+						PREALLOCATE_MUTEX.wait();
+					} catch (InterruptedException e) {
+						throw new IOPagingException(e);
+					}
+				}
+				allocatedSegments = Math.min(allocatedSegments, keep);
+				preallocateTarget.set(Math.min(preallocateTarget.get(), keep - 1));
+			}
+		}
+
+		// The file is still long enough for the short mappings to not extend it.
+		Segment[] current;
+		Segment[] update;
+		while (true) {
+			current = segments.get();
+			update = new Segment[Math.min(current.length, keep)];
+			System.arraycopy(current, 0, update, 0, update.length);
+			for (int i = 0; i < update.length; i++) {
+				long start = ((long) i) * bufferSize;
+				if (update[i] != null && start + update[i].buffer.capacity() > length) {
+					update[i] = map(i, (int) (length - start));
+					update[i].dirtyBytes.addAndGet(current[i].dirtyBytes.get());
+				}
+			}
+			if (segments.compareAndSet(current, update)) {
+				break;
+			}
+			for (int i = 0; i < update.length; i++) {
+				if (update[i] != current[i]) {
+					BYTE_BUFFER_RELEASER.release(update[i].buffer);
+				}
+			}
+		}
+
+		// Nothing uses the bytes past the length, but other threads might still
+		// read the kept bytes through the replaced mappings, so those get
+		// unmapped once they are collected.
+		for (int i = keep; i < current.length; i++) {
+			if (current[i] != null) {
+				BYTE_BUFFER_RELEASER.release(current[i].buffer);
+			}
+		}
+
+		try {
+			channel.truncate(length);
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes written since the last sync.  Bytes
+	 *         which were written more than once are counted each time.
+	 */
+	public long getDirtyBytes() {
+		long rc = 0;
+		for (Segment segment : segments.get()) {
+			if (segment != null) {
+				rc += segment.dirtyBytes.get();
+			}
+		}
+		return rc;
+	}
+
+	int getBounderyBufferCount() {
+		return bounderyBufferCount.get();
+	}
+
+	/**
+	 * @return the number of segments the next sync will force.
+	 */
+	public int getDirtySegments() {
+		int rc = 0;
+		for (Segment segment : segments.get()) {
+			if (segment != null && segment.dirtyBytes.get() > 0) {
+				rc++;
+			}
+		}
+		return rc;
+	}
 	
 	public void close() throws IOPagingException {
+		if (preallocator != null) {
+			// don't interrupt it, that would close the channel.
+			closed = true;
+			preallocator.shutdown();
+			try {
+				preallocator.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+			}
+		}
 		sync();
-		for (MappedByteBuffer buffer : buffers) {
-			if (buffer != null) {
-				BYTE_BUFFER_RELEASER.release(buffer);
+		for (Segment segment : segments.getAndSet(new Segment[0])) {
+			if (segment != null) {
+				BYTE_BUFFER_RELEASER.release(segment.buffer);
 			}
 		}
-		buffers.clear();
 		try {
             channel.close();
         } catch (IOException e) {
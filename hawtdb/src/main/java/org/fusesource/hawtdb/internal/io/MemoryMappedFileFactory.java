@@ -30,6 +30,8 @@ public class MemoryMappedFileFactory {
     private File file;
     private int mappingSegementSize=1024*1024*64;
     private boolean readOnly = false;
+    private int preallocateSegments;
+    private int mappingOverlap = 1024*1024;
     
     public void open() throws IOException {
         if( memoryMappedFile == null ) {
@@ -39,9 +41,12 @@ public class MemoryMappedFileFactory {
             if( mappingSegementSize <= 0 ) {
                 throw new IllegalArgumentException("mappingSegementSize property must be greater than 0");
             }
+            if( mappingOverlap < 0 ) {
+                throw new IllegalArgumentException("mappingOverlap property cannot be negative.");
+            }
             // We auto create the parent directory.
             file.getCanonicalFile().getParentFile().mkdirs();
-            memoryMappedFile = new MemoryMappedFile(file, mappingSegementSize, readOnly);
+            memoryMappedFile = new MemoryMappedFile(file, mappingSegementSize, readOnly, preallocateSegments, Math.min(mappingOverlap, mappingSegementSize));
         }
     }
     
@@ -70,6 +75,20 @@ public class MemoryMappedFileFactory {
         this.mappingSegementSize = mappingSegementSize;
     }
 
+    public int getPreallocateSegments() {
+        return preallocateSegments;
+    }
+    public void setPreallocateSegments(int preallocateSegments) {
+        this.preallocateSegments = preallocateSegments;
+    }
+
+    public int getMappingOverlap() {
+        return mappingOverlap;
+    }
+    public void setMappingOverlap(int mappingOverlap) {
+        this.mappingOverlap = mappingOverlap;
+    }
+
     public boolean isReadOnly() {
         return readOnly;
     }
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.nio.ByteBuffer;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.IOPagingException;
+
+/**
+ * The storage backend of a page file.  Provides positional access
+ * to the bytes of a file.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface StorageFile {
+
+    public void read(long position, byte[] data) throws IOPagingException;
+
+    public void read(long position, Buffer data) throws IOPagingException;
+
+    public void read(long position, byte[] data, int offset, int length) throws IOPagingException;
+
+    public void write(long position, byte[] data) throws IOPagingException;
+
+    public void write(long position, Buffer data) throws IOPagingException;
+
+    /**
+     * Writes the remaining bytes of the buffer.
+     */
+    public void write(long position, ByteBuffer data) throws IOPagingException;
+
+    public void write(long position, byte[] data, int offset, int length) throws IOPagingException;
+
+    /**
+     * Provides direct access to a region of the file.  The slice must be passed
+     * to {@link #unslice(ByteBuffer)} once it's no longer used.  The changes made to
+     * a writable slice might not be visible to other readers until then.
+     *
+     * @param readOnly if the slice will only be read.
+     */
+    public ByteBuffer slice(boolean readOnly, long position, int length) throws IOPagingException;
+
+    public void unslice(ByteBuffer buffer);
+
+    /**
+     * Forces the previous writes to disk.
+     */
+    public void sync() throws IOPagingException;
+
+    /**
+     * Shrinks the file to the length.  The caller has to make sure that the
+     * bytes past the length are not in use anymore.
+     *
+     * @return the length of the file, it's shorter than requested if the file was.
+     */
+    public long truncate(long length) throws IOPagingException;
+
+    public void close() throws IOPagingException;
+
+}
@@ -18,6 +18,8 @@ package org.fusesource.hawtdb.internal.page;
 
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.PagingException;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
 import org.fusesource.hawtdb.util.list.LinkedNode;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
@@ -28,8 +30,12 @@ import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.fusesource.hawtdb.internal.page.Logging.trace;
 import static org.fusesource.hawtdb.internal.page.Logging.traced;
@@ -54,14 +60,18 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
     
     /** the commits and snapshots in the redo */ 
     final LinkedNodeList<Commit> commits = new LinkedNodeList<Commit>();
-    /** tracks how many snapshots are referencing the redo */
-    volatile int snapshots;
+    /** tracks how many open snapshots use this redo as their base */
+    final AtomicInteger snapshots = new AtomicInteger();
+    /** tracks how many open snapshots were opened while this was the open batch */
+    final AtomicInteger headSnapshots = new AtomicInteger();
     /** the oldest commit in this redo */
     public volatile long base=-1;
     /** the newest commit in this redo */
     public volatile long head;
 
     volatile boolean performed;
+    /** the number of page updates held by the commits, maintained as commits are added to the open batch */
+    int pageCount;
 
     volatile ArrayList<Runnable> flushCallbacks = new ArrayList<Runnable>();
     
@@ -105,11 +115,7 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
     }        
 
     public int pageCount() {
-        int rc = 0;
-        for (Commit commit : this) {
-            rc += commit.updates.size();
-        }
-        return rc;
+        return pageCount;
     }
 
     public Commit getHeadCommit() {
@@ -150,26 +156,57 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
         };
     }
 
-    public void performDeferredUpdates(Paged pageFile) {
+    /**
+     * Marshals the deferred updates of the batch commits to their pages.
+     *
+     * @param encoders when not null, the values get encoded in parallel
+     *        on the executor.  The linked pages the encoding produces are still
+     *        merged into the commits in page order, just like when encoded serially.
+     * @param chunkSize how many shadow pages get reserved from the allocator at a time.
+     */
+    public void performDeferredUpdates(Paged pageFile, TranslationIndex translations, ExecutorService encoders, int chunkSize) {
+        PageReservation shadows = new PageReservation(pageFile.allocator(), chunkSize);
+        try {
+            performDeferredUpdates(pageFile, translations, encoders, shadows);
+        } finally {
+            shadows.release();
+        }
+    }
+
+    private void performDeferredUpdates(Paged pageFile, TranslationIndex translations, ExecutorService encoders, PageReservation shadows) {
+        // the stores waiting to be run in parallel, and the pages they will write.
+        ArrayList<DeferredStore> pending = new ArrayList<DeferredStore>();
+        IntHashMap<DeferredStore> pendingPages = new IntHashMap<DeferredStore>();
+
         for (Commit commit : this) {
             assert(commit.stillSane());
             if( commit.updates != null ) {
-                for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
+                // merging the linked pages adds entries to the map, so iterate a copy of the keys.
+                for (int page : commit.updates.sortedKeys()) {
 
-                    Integer page = entry.getKey();
-                    DeferredUpdate du = entry.getValue().deferredUpdate();
+                    Update update = commit.updates.get(page);
+                    DeferredUpdate du = update==null ? null : update.deferredUpdate();
 
                     if( du == null ) {
                         continue;
                     }
 
+                    // The pages linked by the version this update replaces get freed.  An
+                    // earlier commit of the batch may still need to write that version first.
+                    int previous = previousVersion(translations, commit, page);
+                    if( pendingPages.containsKey(previous) ) {
+                        store(encoders, pending, pageFile, translations);
+                        pendingPages.clear();
+                    }
+
                     assert !du.shadowed() : "deferred update should not have a shadow page.";
                     if( du.removed() ) {
                         assert(!du.put());
 
-                        List<Integer> freePages = du.marshaller.pagesLinked(pageFile, page);
+                        List<Integer> freePages = du.marshaller.pagesLinked(pageFile, previous);
                         for (Integer linkedPage : freePages) {
                             commit.merge(pageFile.allocator(), linkedPage, update().freed(true));
+                            translations.add(linkedPage, commit);
                         }
                     }
 
@@ -178,36 +215,132 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
 
                         if( !du.allocated() ) {
                             // update has to occur on a shadow page.
-                            du.shadow(pageFile.allocator().alloc(1));
+                            du.shadow(shadows.alloc(1, page));
 
                             // free up the linked pages of the previous put
-                            List<Integer> freePages = du.marshaller.pagesLinked(pageFile, page);
+                            List<Integer> freePages = du.marshaller.pagesLinked(pageFile, previous);
                             for (Integer linkedPage : freePages) {
                                 commit.merge(pageFile.allocator(), linkedPage, update().freed(true));
+                                translations.add(linkedPage, commit);
                             }
                         }
 
-                        List<Integer> linkedPages = du.marshaller.store(pageFile, du.translate(page), du.value);
-                        if( traced(page) ) {
-                            trace("storing update of %d at %d linked pages: %s", page, du.translate(page), linkedPages);
-                        }
-                        
-                        for (Integer linkedPage : linkedPages) {
-                            // add any allocated pages to the update list so that the free
-                            // list gets properly adjusted.
-                            commit.merge(pageFile.allocator(), linkedPage, update().allocated(true));
+                        DeferredStore store = new DeferredStore(pageFile, commit, page, du);
+                        if( encoders == null ) {
+                            store.merge(translations, store.call());
+                        } else {
+                            pending.add(store);
+                            pendingPages.put(du.translate(page), store);
                         }
                     }
                 }
             }
         }
+        store(encoders, pending, pageFile, translations);
+    }
+
+    /**
+     * @return the page holding the version of the page that was current before
+     *         the commit.  It's on a shadow page if an earlier commit which has not
+     *         been performed yet updated it.
+     */
+    private static int previousVersion(TranslationIndex translations, Commit commit, int page) {
+        Commit[] versions = translations.versions(page);
+        if( versions != null ) {
+            for( int i=TranslationIndex.search(versions, commit.getBaseRevision()-1); i >= 0; i-- ) {
+                Update update = versions[i].updates.get(page);
+                if( update!=null ) {
+                    return update.translate(page);
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Runs the pending stores on the encoders and then merges their
+     * linked pages into the commits in the order the stores were added.
+     */
+    private static void store(ExecutorService encoders, ArrayList<DeferredStore> pending, Paged pageFile, TranslationIndex translations) {
+        if( pending.isEmpty() ) {
+            return;
+        }
+        if( pending.size() == 1 ) {
+            DeferredStore store = pending.get(0);
+            store.merge(translations, store.call());
+            pending.clear();
+            return;
+        }
+
+        List<Future<List<Integer>>> results;
+        try {
+            results = encoders.invokeAll(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PagingException(e);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            List<Integer> linkedPages;
+            try {
+                linkedPages = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PagingException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if( cause instanceof RuntimeException ) {
+                    throw (RuntimeException) cause;
+                }
+                if( cause instanceof Error ) {
+                    throw (Error) cause;
+                }
+                throw new PagingException(cause);
+            }
+            pending.get(i).merge(translations, linkedPages);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Marshals a deferred update value to its page.
+     */
+    private static final class DeferredStore implements Callable<List<Integer>> {
+        private final Paged pageFile;
+        private final Commit commit;
+        private final int page;
+        private final DeferredUpdate du;
+
+        DeferredStore(Paged pageFile, Commit commit, int page, DeferredUpdate du) {
+            this.pageFile = pageFile;
+            this.commit = commit;
+            this.page = page;
+            this.du = du;
+        }
+
+        public List<Integer> call() {
+            List<Integer> linkedPages = du.marshaller.store(pageFile, du.translate(page), du.value);
+            if( traced(page) ) {
+                trace("storing update of %d at %d linked pages: %s", page, du.translate(page), linkedPages);
+            }
+            return linkedPages;
+        }
+
+        void merge(TranslationIndex translations, List<Integer> linkedPages) {
+            for (Integer linkedPage : linkedPages) {
+                // add any allocated pages to the update list so that the free
+                // list gets properly adjusted.
+                commit.merge(pageFile.allocator(), linkedPage, update().allocated(true));
+                translations.add(linkedPage, commit);
+            }
+        }
     }
 
     public void release(Allocator allocator) {
         for (Commit commit : this) {
-            for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
-                int key = entry.getKey();
-                Update value = entry.getValue();
+            IntHashMap.Cursor<Update> cursor = commit.updates.cursor();
+            while( cursor.next() ) {
+                int key = cursor.key();
+                Update value = cursor.value();
 
                 if( value.freed() ) {
                     assert(!value.shadowed());
@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import org.fusesource.hawtbuf.AbstractVarIntSupport;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Encodes and decodes the {@link Batch} redo records which get stored
+ * in the page file.
+ * </p><p>
+ * A record starts with a 2 byte magic, a version byte, the payload length
+ * and a CRC32 of the payload.  The payload holds the batch header followed
+ * by its commits.  Revisions, page ids and shadow pages are written as
+ * var ints delta encoded against the previously written value, and each
+ * update only carries a single flags byte.
+ * </p><p>
+ * Records written by older versions used Java serialization.  Those
+ * are still recognized when decoding so that a file can be recovered
+ * after an upgrade.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BatchCodec {
+
+    static final byte MAGIC_0 = 'H';
+    static final byte MAGIC_1 = 'R';
+    static final byte VERSION = 1;
+
+    /** First 2 bytes of a Java serialization stream */
+    private static final int SERIALIZATION_MAGIC_0 = 0xAC;
+    private static final int SERIALIZATION_MAGIC_1 = 0xED;
+
+    /** Set in the encoded flags when the update has a shadow page */
+    private static final byte PAGE_SHADOWED = 0x01 << 4;
+    /** The update flags which are persisted */
+    private static final byte STORED_FLAGS = Update.PAGE_ALLOCATED | Update.PAGE_FREED;
+
+    private BatchCodec() {
+    }
+
+    /**
+     * Writes the batch record to the output stream.
+     */
+    static void store(Batch batch, OutputStream os) throws IOException {
+        DataByteArrayOutputStream payload = new DataByteArrayOutputStream(1024);
+        encode(batch, payload);
+        Buffer buffer = payload.toBuffer();
+
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.data, buffer.offset, buffer.length);
+
+        DataByteArrayOutputStream header = new DataByteArrayOutputStream(11);
+        header.writeByte(MAGIC_0);
+        header.writeByte(MAGIC_1);
+        header.writeByte(VERSION);
+        header.writeInt(buffer.length);
+        header.writeInt((int) checksum.getValue());
+        Buffer h = header.toBuffer();
+
+        os.write(h.data, h.offset, h.length);
+        os.write(buffer.data, buffer.offset, buffer.length);
+    }
+
+    /**
+     * Reads a batch record from the input stream.  Both the current
+     * format and the Java serialization format are understood.
+     */
+    static Batch load(InputStream is) throws IOException {
+        PushbackInputStream pis = new PushbackInputStream(is, 2);
+        int b0 = pis.read();
+        int b1 = pis.read();
+        if (b0 < 0 || b1 < 0) {
+            throw new EOFException();
+        }
+
+        if (b0 == SERIALIZATION_MAGIC_0 && b1 == SERIALIZATION_MAGIC_1) {
+            pis.unread(b1);
+            pis.unread(b0);
+            try {
+                return (Batch) new ObjectInputStream(pis).readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOPagingException(e);
+            }
+        }
+
+        if (b0 != (MAGIC_0 & 0xFF) || b1 != (MAGIC_1 & 0xFF)) {
+            throw new IOPagingException("Not a batch record.");
+        }
+
+        DataInputStream dis = new DataInputStream(pis);
+        int version = dis.readByte();
+        if (version != VERSION) {
+            throw new IOPagingException("Unsupported batch record version: " + version);
+        }
+        int length = dis.readInt();
+        int expectedChecksum = dis.readInt();
+        if (length < 0) {
+            throw new IOPagingException("Invalid batch record length: " + length);
+        }
+
+        byte[] data = new byte[length];
+        dis.readFully(data);
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+        if ((int) checksum.getValue() != expectedChecksum) {
+            throw new IOPagingException("Batch record corruption detected.");
+        }
+        return decode(new DataByteArrayInputStream(data));
+    }
+
+    static void encode(Batch batch, final DataByteArrayOutputStream os) throws IOException {
+        VarInts out = new VarInts() {
+            protected void writeByte(int value) throws IOException {
+                os.writeByte(value);
+            }
+        };
+
+        out.writeVarSignedLong(batch.head);
+        out.writeVarSignedLong(batch.head - batch.base);
+        out.writeVarSignedInt(batch.previous);
+        out.writeVarInt(batch.commits.size());
+
+        long lastRevision = batch.base;
+        int lastShadow = 0;
+        for (Commit commit : batch) {
+            out.writeVarSignedLong(commit.getBaseRevision() - lastRevision);
+            out.writeVarLong(commit.getHeadRevision() - commit.getBaseRevision());
+            lastRevision = commit.getHeadRevision();
+
+            // Sort the pages so they can be delta encoded.
+            IntHashMap<Update> updates = commit.updates;
+            int[] pages = updates.sortedKeys();
+
+            out.writeVarInt(pages.length);
+            int lastPage = 0;
+            for (int page : pages) {
+                Update update = updates.get(page);
+                out.writeVarInt(page - lastPage);
+                lastPage = page;
+
+                byte flags = (byte) (update.flags & STORED_FLAGS);
+                if (update.shadowed()) {
+                    flags |= PAGE_SHADOWED;
+                }
+                os.writeByte(flags);
+                if (update.shadowed()) {
+                    out.writeVarSignedInt(update.shadow - lastShadow);
+                    lastShadow = update.shadow;
+                }
+            }
+        }
+    }
+
+    static Batch decode(final DataByteArrayInputStream is) throws IOException {
+        VarInts in = new VarInts() {
+            protected byte readByte() throws IOException {
+                return BatchCodec.readByte(is);
+            }
+        };
+
+        Batch batch = new Batch();
+        batch.head = in.readVarSignedLong();
+        batch.base = batch.head - in.readVarSignedLong();
+        batch.previous = in.readVarSignedInt();
+        int commitCount = in.readVarInt();
+
+        long lastRevision = batch.base;
+        int lastShadow = 0;
+        for (int c = 0; c < commitCount; c++) {
+            long base = lastRevision + in.readVarSignedLong();
+            long head = base + in.readVarLong();
+            lastRevision = head;
+
+            int count = in.readVarInt();
+            IntHashMap<Update> updates = new IntHashMap<Update>(count);
+            int page = 0;
+            for (int i = 0; i < count; i++) {
+                page += in.readVarInt();
+                byte flags = readByte(is);
+
+                Update update = new Update();
+                update.flags = (byte) (flags & STORED_FLAGS);
+                if ((flags & PAGE_SHADOWED) != 0) {
+                    lastShadow += in.readVarSignedInt();
+                    update.shadow = lastShadow;
+                }
+                updates.put(page, update);
+            }
+            batch.commits.addLast(new Commit(base, head, updates));
+        }
+        return batch;
+    }
+
+    private static byte readByte(DataByteArrayInputStream is) throws IOException {
+        int rc = is.read();
+        if (rc < 0) {
+            throw new EOFException();
+        }
+        return (byte) rc;
+    }
+
+    /**
+     * Var int helper.  Sub classes only implement the direction they use.
+     */
+    private static class VarInts extends AbstractVarIntSupport {
+
+        @Override
+        protected byte readByte() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void writeByte(int value) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
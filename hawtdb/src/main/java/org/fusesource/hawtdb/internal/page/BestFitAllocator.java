@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.TreeSet;
+
+import org.fusesource.hawtdb.api.Allocator;
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.fusesource.hawtdb.internal.util.Ranges.Range;
+import static org.fusesource.hawtdb.internal.page.Logging.*;
+
+/**
+ * <p>
+ * An allocator which hands out the smallest free range that can hold the
+ * requested number of pages.  Picking the lowest page among the ranges of
+ * that size keeps the allocations packed towards the front of the file.
+ * </p><p>
+ * Besides the free ranges ordered by page, it keeps the free ranges ordered
+ * by size so that an allocation is a O(log n) lookup instead of the first
+ * fit scan done by the {@link SimpleAllocator}.  The ranges returned by
+ * {@link #getFreeRanges()} must not be modified, use {@link #setFreeRanges(Ranges)}
+ * instead.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BestFitAllocator implements Allocator {
+
+    private final Ranges freeRanges = new Ranges();
+    /** the free ranges ordered by size and then start, see {@link #key(Range)} */
+    private final TreeSet<Long> bySize = new TreeSet<Long>();
+    private volatile int limit;
+
+    public BestFitAllocator(int limit) {
+        this.limit = limit;
+        clear();
+    }
+
+    private static long key(Range range) {
+        return ((long) range.size() << 32) | range.start;
+    }
+
+    private void op_trace(String op, int page, int count) {
+        if( traced(page) ) {
+            trace("%s: %d : %d", op, page, count);
+        }
+    }
+
+    /**
+     * @see Allocator#alloc(int)
+     */
+    synchronized public int alloc(int size) throws OutOfSpaceException {
+        Long key = bySize.ceiling((long) size << 32);
+        if( key == null ) {
+            throw new OutOfSpaceException();
+        }
+        int rc = (int) key.longValue();
+        op_trace("ALLOC", rc, size);
+        unfree(rc, size);
+        return rc;
+    }
+
+    /**
+     * @see Allocator#alloc(int, int)
+     */
+    synchronized public int alloc(int size, int hint) throws OutOfSpaceException {
+        if( hint >= 0 ) {
+            int rc = freeRanges.find(hint, size, SimpleAllocator.HINT_RANGES);
+            if( rc >= 0 ) {
+                op_trace("ALLOC", rc, size);
+                unfree(rc, size);
+                return rc;
+            }
+        }
+        return alloc(size);
+    }
+
+    /**
+     * @see Allocator#free(int, int)
+     */
+    synchronized public void free(int pageId, int count) {
+        int end = pageId + count;
+
+        // Ranges which touch the freed pages get merged with them.
+        Range range = freeRanges.floor(pageId);
+        if( range != null && range.end >= pageId ) {
+            bySize.remove(key(range));
+        }
+        range = freeRanges.ceiling(pageId);
+        while( range != null && range.start <= end ) {
+            bySize.remove(key(range));
+            range = freeRanges.ceiling(range.end);
+        }
+
+        freeRanges.add(pageId, count);
+        bySize.add(key(freeRanges.floor(pageId)));
+        op_trace("FREE", pageId, count);
+    }
+
+    /**
+     * @see Allocator#unfree(int, int)
+     */
+    synchronized public void unfree(int pageId, int count) {
+        int end = pageId + count;
+
+        // Ranges which overlap the pages get trimmed or split.
+        Range range = freeRanges.floor(pageId);
+        if( range != null && range.end > pageId ) {
+            bySize.remove(key(range));
+        }
+        range = freeRanges.ceiling(pageId);
+        while( range != null && range.start < end ) {
+            bySize.remove(key(range));
+            range = freeRanges.ceiling(range.end);
+        }
+
+        freeRanges.remove(pageId, count);
+
+        // Re-index what is left on both sides.
+        range = freeRanges.floor(pageId);
+        if( range != null ) {
+            bySize.add(key(range));
+        }
+        range = freeRanges.ceiling(end);
+        if( range != null ) {
+            bySize.add(key(range));
+        }
+    }
+
+    synchronized public void clear() throws UnsupportedOperationException {
+        freeRanges.clear();
+        freeRanges.add(0, limit);
+        index();
+    }
+
+    synchronized public void setFreeRanges(Ranges freePages) throws UnsupportedOperationException {
+        freeRanges.copy(freePages);
+        index();
+    }
+
+    private void index() {
+        bySize.clear();
+        for (Range range : freeRanges) {
+            bySize.add(key(range));
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    synchronized public boolean isAllocated(int page) {
+        return !freeRanges.contains(page);
+    }
+
+    public Ranges getFreeRanges() {
+        return freeRanges;
+    }
+
+    @Override
+    public String toString() {
+        return "{ free pages: "+freeRanges.toString()+" }";
+    }
+
+}
@@ -17,14 +17,13 @@
 package org.fusesource.hawtdb.internal.page;
 
 import org.fusesource.hawtdb.api.Allocator;
-import org.fusesource.hawtdb.api.OptimisticUpdateException;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
 import org.fusesource.hawtdb.util.list.LinkedNode;
 
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -49,18 +48,31 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
     /** newest revision in the commit range, will match base if this only tracks one commit */ 
     private volatile long head;
     
-    /** all the page updates that are part of the redo */
-    volatile ConcurrentHashMap<Integer, Update> updates;
+    /**
+     * all the page updates that are part of the redo.  Committing transactions merge
+     * into it while its batch is open and the store thread once the batch is closed,
+     * while snapshots look pages up in it without locking.
+     */
+    volatile IntHashMap<Update> updates;
 
     public Commit() {
     }
     
-    public Commit(long version, ConcurrentHashMap<Integer, Update> updates) {
-        this.head = this.base = version;
+    public Commit(long version, IntHashMap<Update> updates) {
+        this(version, version, updates);
+    }
+
+    public Commit(long base, long head, IntHashMap<Update> updates) {
+        this.base = base;
+        this.head = head;
         this.updates = updates;
     }
     
     
+    public long getBaseRevision() {
+        return base;
+    }
+
     public long getHeadRevision() {
         return head;
     }
@@ -70,23 +82,15 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
         return "{ base: "+this.base+", head: "+this.head+", updates: "+updateSize+" }";
     }
 
-    public long commitCheck(Map<Integer, Update> newUpdate) {
-        for (Integer page : newUpdate.keySet()) {
-            if( updates.containsKey( page ) ) {
-                throw new OptimisticUpdateException();
-            }
-        }
-        return head;
-    }
-
-    public void merge(Allocator allocator, long rev, ConcurrentHashMap<Integer, Update> updates) {
+    public void merge(Allocator allocator, long rev, IntHashMap<Update> updates) {
         assert head+1 == rev;
         head=rev;
         // merge all the entries in the update..
-        for (Entry<Integer, Update> entry : updates.entrySet()) {
-            merge(allocator, entry.getKey(), entry.getValue());
-            if( traced(entry.getKey()) ) {
-                trace("merged: %s", entry);
+        IntHashMap.Cursor<Update> cursor = updates.cursor();
+        while( cursor.next() ) {
+            merge(allocator, cursor.key(), cursor.value());
+            if( traced(cursor.key()) ) {
+                trace("merged: %d=%s", cursor.key(), cursor.value());
             }
         }
         assert(stillSane());
@@ -103,8 +107,12 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
 
         Update previous = this.updates.put(page, update);
         if (previous != null) {
-            previous.history.addAll(update.history);
-            update.history = previous.history;
+            if( previous.history!=null ) {
+                if( update.history!=null ) {
+                    previous.history.addAll(update.history);
+                }
+                update.history = previous.history;
+            }
             if( update.freed() ) {
 
                 assert !previous.freed(): "free can not follow a free.";
@@ -113,7 +121,9 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
                 // a shadow update can be merged onto a an allocation
 
                 if( previous.shadowed() ) {
-                    update.note("free previous shadow: "+previous.shadow());
+                    if( update.tracked() ) {
+                        update.note("free previous shadow: "+previous.shadow());
+                    }
                     allocator.free(previous.shadow(), 1);
                 }
 
@@ -147,7 +157,9 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
                 }
 
                 if( previous.shadowed() ) {
-                    update.note("free previous shadow: "+previous.shadow());
+                    if( update.tracked() ) {
+                        update.note("free previous shadow: "+previous.shadow());
+                    }
                     allocator.free(previous.shadow(), 1);
                 }
 
@@ -164,9 +176,10 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
     }
 
     public boolean stillSane() {
-        for (Entry<Integer, Update> entry : updates.entrySet()) {
-            int page = entry.getKey();
-            Update update = entry.getValue();
+        IntHashMap.Cursor<Update> cursor = updates.cursor();
+        while( cursor.next() ) {
+            int page = cursor.key();
+            Update update = cursor.value();
 
             // is a shadow update?
             if( update.shadowed() ) {
@@ -184,13 +197,23 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         base = in.readLong();
         head = in.readLong();
-        updates = (ConcurrentHashMap<Integer, Update>) in.readObject();
+        ConcurrentHashMap<Integer, Update> map = (ConcurrentHashMap<Integer, Update>) in.readObject();
+        updates = new IntHashMap<Update>(map.size());
+        for (Entry<Integer, Update> entry : map.entrySet()) {
+            updates.put(entry.getKey(), entry.getValue());
+        }
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeLong(base);
         out.writeLong(head);
-        out.writeObject(updates);
+        // The serialized form predates the IntHashMap.
+        ConcurrentHashMap<Integer, Update> map = new ConcurrentHashMap<Integer, Update>();
+        IntHashMap.Cursor<Update> cursor = updates.cursor();
+        while( cursor.next() ) {
+            map.put(cursor.key(), cursor.value());
+        }
+        out.writeObject(map);
     }
 
 }
\ No newline at end of file
@@ -187,7 +187,7 @@ public class Extent {
      * @param page
      */
     public static List<Integer> pagesLinked(Paged paged, int page) {
-        return freeLinked(paged, page, DEFAULT_MAGIC);
+        return pagesLinked(paged, page, DEFAULT_MAGIC);
     }
 
     public static List<Integer> pagesLinked(Paged paged, int page, Buffer magic) {
@@ -61,7 +61,7 @@ public class ExtentOutputStream extends OutputStream {
     
     public void write(int b) throws IOException {
         if (!current.write((byte) b)) {
-            int nextPageId = this.paged.allocator().alloc(extentSize);
+            int nextPageId = nextExtent();
             current.writeCloseLinked(nextPageId);
             pages.add(current.getPage(), paged.pages(current.getLength()));
             current = new Extent(paged, nextPageId);
@@ -75,7 +75,7 @@ public class ExtentOutputStream extends OutputStream {
         Buffer buffer = new Buffer(b, off, len);
         while (buffer.length > 0) {
             if (!current.write(buffer)) {
-                int nextPageId = this.paged.allocator().alloc(extentSize);
+                int nextPageId = nextExtent();
                 current.writeCloseLinked(nextPageId);
                 pages.add(current.getPage(), paged.pages(current.getLength()));
                 current = new Extent(paged, nextPageId);
@@ -84,6 +84,13 @@ public class ExtentOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Linked extents get allocated close to the extent they follow.
+     */
+    private int nextExtent() {
+        return paged.allocator().alloc(extentSize, current.getPage());
+    }
+
     public short getExtentSize() {
         return extentSize;
     }
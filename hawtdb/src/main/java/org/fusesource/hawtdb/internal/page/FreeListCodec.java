@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.internal.util.Ranges;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * <p>
+ * Encodes and decodes the free page list records which get stored
+ * in the page file.
+ * </p><p>
+ * The free list is stored as a chain of records.  A checkpoint record
+ * holds the full free list, and each delta record holds the pages which
+ * were allocated and freed since the previous record of the chain.  A record
+ * starts with a 2 byte magic, a version byte, the record type and the page
+ * of the previous record in the chain.
+ * </p><p>
+ * Older versions stored the free list using Java serialization.  Those
+ * are decoded as a checkpoint so that a file can be recovered after
+ * an upgrade.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class FreeListCodec {
+
+    static final byte MAGIC_0 = 'H';
+    static final byte MAGIC_1 = 'F';
+    static final byte VERSION = 1;
+
+    static final byte CHECKPOINT = 0;
+    static final byte DELTA = 1;
+
+    /** First 2 bytes of a Java serialization stream */
+    private static final int SERIALIZATION_MAGIC_0 = 0xAC;
+    private static final int SERIALIZATION_MAGIC_1 = 0xED;
+
+    /**
+     * A decoded free list record.
+     */
+    static final class Record {
+        byte type;
+        /** the page of the previous record in the chain, -1 for a checkpoint */
+        int previous = -1;
+        /** the free pages of a checkpoint, or the pages freed by a delta */
+        final Ranges freed = new Ranges();
+        /** the pages allocated by a delta */
+        final Ranges allocated = new Ranges();
+    }
+
+    private FreeListCodec() {
+    }
+
+    /**
+     * Writes a checkpoint record holding the full free list.
+     */
+    static void storeCheckpoint(Ranges free, OutputStream os) throws IOException {
+        DataOutputStream out = header(CHECKPOINT, -1, os);
+        free.writeExternal(out);
+        out.flush();
+    }
+
+    /**
+     * Writes a delta record.  When decoded, the allocated pages are removed
+     * from the free list before the freed pages are added to it.
+     */
+    static void storeDelta(int previous, Ranges allocated, Ranges freed, OutputStream os) throws IOException {
+        DataOutputStream out = header(DELTA, previous, os);
+        allocated.writeExternal(out);
+        freed.writeExternal(out);
+        out.flush();
+    }
+
+    private static DataOutputStream header(byte type, int previous, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(previous);
+        return out;
+    }
+
+    /**
+     * Reads a free list record from the input stream.
+     */
+    static Record load(InputStream is) throws IOException {
+        PushbackInputStream pis = new PushbackInputStream(is, 2);
+        int b0 = pis.read();
+        int b1 = pis.read();
+        if (b0 < 0 || b1 < 0) {
+            throw new EOFException();
+        }
+
+        Record record = new Record();
+        if (b0 == SERIALIZATION_MAGIC_0 && b1 == SERIALIZATION_MAGIC_1) {
+            pis.unread(b1);
+            pis.unread(b0);
+            try {
+                record.type = CHECKPOINT;
+                record.freed.copy((Ranges) new ObjectInputStream(pis).readObject());
+                return record;
+            } catch (ClassNotFoundException e) {
+                throw new IOPagingException(e);
+            }
+        }
+
+        if (b0 != (MAGIC_0 & 0xFF) || b1 != (MAGIC_1 & 0xFF)) {
+            throw new IOPagingException("Not a free list record.");
+        }
+
+        DataInputStream in = new DataInputStream(pis);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOPagingException("Unsupported free list record version: " + version);
+        }
+        record.type = in.readByte();
+        record.previous = in.readInt();
+        switch (record.type) {
+            case CHECKPOINT:
+                record.freed.readExternal(in);
+                break;
+            case DELTA:
+                record.allocated.readExternal(in);
+                record.freed.readExternal(in);
+                break;
+            default:
+                throw new IOPagingException("Invalid free list record type: " + record.type);
+        }
+        return record;
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.fusesource.hawtdb.api.CommitFuture;
+
+/**
+ * A {@link CommitFuture} which gets registered as a flush callback
+ * of the commit.  Running it completes the future.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class HawtCommitFuture implements CommitFuture, Runnable {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ArrayList<Runnable> listeners;
+
+    public void run() {
+        ArrayList<Runnable> l;
+        synchronized (this) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            done.countDown();
+            l = listeners;
+            listeners = null;
+        }
+        if (l != null) {
+            for (Runnable listener : l) {
+                listener.run();
+            }
+        }
+    }
+
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (done.getCount() != 0) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Runnable>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public Void get() throws InterruptedException {
+        done.await();
+        return null;
+    }
+
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return null;
+    }
+
+}
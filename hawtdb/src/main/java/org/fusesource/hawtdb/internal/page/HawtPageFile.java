@@ -17,9 +17,10 @@
 package org.fusesource.hawtdb.internal.page;
 
 import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.PageFile;
 import org.fusesource.hawtdb.api.PagedAccessor;
-import org.fusesource.hawtdb.internal.io.MemoryMappedFile;
+import org.fusesource.hawtdb.internal.io.StorageFile;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -28,21 +29,25 @@ import java.nio.ByteBuffer;
 import static org.fusesource.hawtdb.internal.page.Logging.*;
 
 /**
- * Provides a {@link PageFile} interface to a {@link MemoryMappedFile}. 
+ * Provides a {@link PageFile} interface to a {@link StorageFile}. 
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 public class HawtPageFile implements PageFile {
 
-    private final SimpleAllocator allocator;
+    private final Allocator allocator;
     private final short pageSize;
     private final int headerSize;
-    private final MemoryMappedFile file;
+    private final StorageFile file;
     public final boolean storeFreePages;
 
-    public HawtPageFile(MemoryMappedFile file, short pageSize, int headerSize, int maxPages, boolean storeFreePages) throws IOException {
+    public HawtPageFile(StorageFile file, short pageSize, int headerSize, int maxPages, boolean storeFreePages) throws IOException {
+        this(file, pageSize, headerSize, new SimpleAllocator(maxPages), storeFreePages);
+    }
+
+    public HawtPageFile(StorageFile file, short pageSize, int headerSize, Allocator allocator, boolean storeFreePages) throws IOException {
         this.file = file;
-        this.allocator = new SimpleAllocator(maxPages);
+        this.allocator = allocator;
         this.pageSize = pageSize;
         this.headerSize = headerSize;
         this.storeFreePages = storeFreePages;
@@ -61,7 +66,7 @@ public class HawtPageFile implements PageFile {
     // Paged interface implementation.
     //
     ///////////////////////////////////////////////////////////////////
-    public SimpleAllocator allocator() {
+    public Allocator allocator() {
         return allocator;
     }
 
@@ -123,7 +128,9 @@ public class HawtPageFile implements PageFile {
     }
 
     public <T> void clear(PagedAccessor<T> pagedAccessor, int page) {
-        pagedAccessor.pagesLinked(this, page);
+        for (Integer linkedPage : pagedAccessor.pagesLinked(this, page)) {
+            allocator.free(linkedPage, 1);
+        }
     }
     
     ///////////////////////////////////////////////////////////////////
@@ -146,12 +153,23 @@ public class HawtPageFile implements PageFile {
         assert pageId >= 0;
         return headerSize+(pageId*pageSize);
     }
-    
+
+    /**
+     * Shrinks the file so that it only holds the pages before the given page.
+     * The pages past it must be free.
+     *
+     * @return the number of pages the file holds.
+     */
+    public int truncate(int pageId) {
+        long length = file.truncate(offset(pageId));
+        return (int) Math.max(0, (length - headerSize + pageSize - 1) / pageSize);
+    }
+
     public int getHeaderSize() {
         return headerSize;
     }
 
-    public MemoryMappedFile getFile() {
+    public StorageFile getFile() {
         return file;
     }
 
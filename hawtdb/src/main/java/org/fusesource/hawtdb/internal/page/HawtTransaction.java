@@ -18,11 +18,10 @@ package org.fusesource.hawtdb.internal.page;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.PagedAccessor;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.StringSupport;
 import org.fusesource.hawtbuf.Buffer;
@@ -48,12 +47,17 @@ final class HawtTransaction implements Transaction {
      */
     HawtTransaction(HawtTxPageFile concurrentPageFile) {
         parent = concurrentPageFile;
+        trackHistory = concurrentPageFile.trackUpdateHistory;
     }
 
-    private ConcurrentHashMap<Integer, Update> updates;
+    private final boolean trackHistory;
+
+    private IntHashMap<Update> updates;
     private ArrayList<Runnable> flushCallbacks;
     private Snapshot snapshot;
     private boolean closed;
+    /** The pages reserved for this transaction, handed back on commit or rollback */
+    private PageReservation reservation;
     
     private final Allocator txallocator = new Allocator() {
         
@@ -62,21 +66,28 @@ final class HawtTransaction implements Transaction {
             // TODO: this is not a very efficient way to handle allocation ranges.
             int end = pageId+count;
             for (int key = pageId; key < end; key++) {
-                Update previous = getUpdates().put(key, update().freed(true).note("free "+key) );
+                Update previous = getUpdates().put(key, note(update().freed(true), "free ", key) );
                 if( previous!=null && previous.allocated() ) {
                     getUpdates().remove(key);
                     HawtTransaction.this.parent.allocator.free(key, 1);
+                } else if( previous!=null && previous.shadowed() && previous.shadow()!=key ) {
+                    // the page was written in this transaction, nothing else uses its shadow page.
+                    HawtTransaction.this.parent.allocator.free(previous.shadow(), 1);
                 }
             }
         }
         
         public int alloc(int count) throws OutOfSpaceException {
+            return alloc(count, -1);
+        }
+
+        public int alloc(int count, int hint) throws OutOfSpaceException {
             assertOpen();
-            int pageId = palloc(count);
+            int pageId = palloc(count, hint);
             // TODO: this is not a very efficient way to handle allocation ranges.
             int end = pageId+count;
             for (int key = pageId; key < end; key++) {
-                getUpdates().put(key, update().allocated(true).note("alloc "+key) );
+                getUpdates().put(key, note(update().allocated(true), "alloc ", key) );
             }
             return pageId;
         }
@@ -112,6 +123,17 @@ final class HawtTransaction implements Transaction {
     };
 
 
+    /**
+     * Records an update history note.  The note is only built
+     * when update history tracking is enabled.
+     */
+    private Update note(Update update, String action, int page) {
+        if( trackHistory ) {
+            update.note(action+page);
+        }
+        return update;
+    }
+
     private void assertOpen() {
         assert !closed : "The transaction had been closed.";
     }
@@ -155,7 +177,7 @@ final class HawtTransaction implements Transaction {
 
     public <T> void put(PagedAccessor<T> marshaller, int page, T value) {
         assertOpen();
-        ConcurrentHashMap<Integer, Update> updates = getUpdates();
+        IntHashMap<Update> updates = getUpdates();
         Update update = updates.get(page);
         DeferredUpdate deferred = null;
         if (update == null) {
@@ -174,27 +196,27 @@ final class HawtTransaction implements Transaction {
                 updates.put(page, deferred);
             }
         }
-        deferred.note("put "+page);
+        note(deferred, "put ", page);
         deferred.put(value, marshaller);
     }
 
     public <T> void clear(PagedAccessor<T> marshaller, int page) {
         assertOpen();
-        ConcurrentHashMap<Integer, Update> updates = getUpdates();
+        IntHashMap<Update> updates = getUpdates();
         Update update = updates.get(page);
         
         if( update == null ) {
-            updates.put(page, deferred().remove(marshaller).note("clear "+page+" deferred") );
+            updates.put(page, note(deferred().remove(marshaller), "clear deferred ", page) );
         } else {
             if( !update.put() ) {
                 throw new PagingException("You should never try to clear a page that was not put.");
             }
 
             if( update.allocated() ) {
-                updates.put(page, update(update).note("clear "+page+" back to un-deferred"));
+                updates.put(page, note(update(update), "clear back to un-deferred ", page));
             } else {
                 // was an update of a previous location....
-                updates.put(page, ((DeferredUpdate)update).remove(marshaller).note("clear "+page));
+                updates.put(page, note(((DeferredUpdate)update).remove(marshaller), "clear ", page));
             }
         }
     }
@@ -274,7 +296,24 @@ final class HawtTransaction implements Transaction {
     }
 
     private int palloc(int count) {
-        return parent.allocator.alloc(count);
+        return palloc(count, -1);
+    }
+
+    private int palloc(int count, int hint) {
+        if( hint >= 0 ) {
+            // the reserved chunk is not likely to be near the hint.
+            return parent.allocator.alloc(count, hint);
+        }
+        if( reservation == null ) {
+            reservation = new PageReservation(parent.allocator, parent.allocationChunkSize);
+        }
+        return reservation.alloc(count, hint);
+    }
+
+    private void releaseReservation() {
+        if( reservation != null ) {
+            reservation.release();
+        }
     }
 
     public void unslice(ByteBuffer buffer) {
@@ -321,16 +360,31 @@ final class HawtTransaction implements Transaction {
                 snapshot.close();
                 snapshot = null;
             }
+            releaseReservation();
+        }
+    }
+
+    public CommitFuture commitAsync() throws IOPagingException {
+        assertOpen();
+        HawtCommitFuture future = new HawtCommitFuture();
+        if (updates == null) {
+            commit();
+            future.run();
+        } else {
+            onFlush(future);
+            commit();
         }
+        return future;
     }
 
     public void rollback() throws IOPagingException {
         assertOpen();
         try {
             if (updates!=null) {
-                for (Map.Entry<Integer,Update> entry : updates.entrySet()) {
-                    Integer page = entry.getKey();
-                    Update update = entry.getValue();
+                IntHashMap.Cursor<Update> cursor = updates.cursor();
+                while( cursor.next() ) {
+                    int page = cursor.key();
+                    Update update = cursor.value();
                     if( !update.freed() ) {
                         allocator().free(update.translate(page), 1);
                     }
@@ -343,6 +397,7 @@ final class HawtTransaction implements Transaction {
             }
             updates = null;
             flushCallbacks = null;
+            releaseReservation();
         }
     }
 
@@ -358,9 +413,9 @@ final class HawtTransaction implements Transaction {
         return updates == null;
     }
 
-    private ConcurrentHashMap<Integer, Update> getUpdates() {
+    private IntHashMap<Update> getUpdates() {
         if (updates == null) {
-            updates = new ConcurrentHashMap<Integer, Update>();
+            updates = new IntHashMap<Update>();
         }
         return updates;
     }
@@ -21,18 +21,19 @@ import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.Paged.SliceType;
-import org.fusesource.hawtdb.internal.io.MemoryMappedFile;
+import org.fusesource.hawtdb.internal.io.StorageFile;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 
 import static org.fusesource.hawtdb.internal.page.Logging.*;
@@ -84,7 +85,7 @@ public final class HawtTxPageFile implements TxPageFile {
         public volatile long base_revision;
         /** The size of each page in the page file */
         public volatile int page_size;
-        /** The page location of the free page list */
+        /** The page location of the newest free page list record */
         public volatile int free_list_page;
         /** Where it is safe to resume recovery... Will be
          *  -1 if no recovery is needed. */
@@ -167,11 +168,26 @@ public final class HawtTxPageFile implements TxPageFile {
     /** The header structure of the file */
     private final Header header = new Header();
     private final LinkedNodeList<Batch> batches = new LinkedNodeList<Batch>();
-    private final MemoryMappedFile file;
+    private final StorageFile file;
     final Allocator allocator;
     final HawtPageFile pageFile;
-    private static final int updateBatchSize = 1024;
     private final boolean synch;
+    /** A batch gets stored once it holds more than this many page updates */
+    volatile int batchSize;
+    private final boolean adaptiveBatchSize;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    /** Moving average of the file sync time in nanoseconds */
+    private long syncLatency;
+    /** Page updates stored since the last sync and when that sync completed */
+    private final AtomicInteger pagesSinceSync = new AtomicInteger();
+    private long lastSyncTime = System.nanoTime();
+    /** The runs of shadow pages copied to their original locations and the pages they held */
+    final AtomicInteger performedRuns = new AtomicInteger();
+    final AtomicInteger performedPages = new AtomicInteger();
+    final boolean trackUpdateHistory;
+    /** How many pages transactions and batch stores reserve from the allocator at a time */
+    final int allocationChunkSize;
     private volatile int lastBatchPage = -1;
     //
     // The following batch objects point to linked nodes in the previous batch list.
@@ -179,6 +195,8 @@ public final class HawtTxPageFile implements TxPageFile {
     //
     /** The current batch that is currently being assembled. */
     volatile Batch openBatch;
+    /** The batches that are closed to new commits, but have not been written yet. */
+    volatile Batch closedBatches;
     /** The batches that are being stored... These might be be recoverable. */
     volatile Batch storingBatches;
     /** The stored batches. */
@@ -207,6 +225,31 @@ public final class HawtTxPageFile implements TxPageFile {
         }
 
     }
+
+    private static class STORE_MUTEX {
+
+        public String toString() {
+            return "STORE_MUTEX";
+        }
+
+    }
+
+    private static class SYNC_MUTEX {
+
+        public String toString() {
+            return "SYNC_MUTEX";
+        }
+
+    }
+    /**
+     * Serializes writing the closed batches so they get linked in order.  Once acquired,
+     * you can also acquire the HOUSE_KEEPING_MUTEX.
+     */
+    private final STORE_MUTEX STORE_MUTEX = new STORE_MUTEX();
+    /**
+     * Serializes the file syncs.  Once acquired, you can also acquire the HOUSE_KEEPING_MUTEX.
+     */
+    private final SYNC_MUTEX SYNC_MUTEX = new SYNC_MUTEX();
     /**
      * Mutex for data structures which are used during house keeping tasks like batch
      * management. Once acquired, you can also acquire the TRANSACTION_MUTEX
@@ -230,29 +273,131 @@ public final class HawtTxPageFile implements TxPageFile {
      * tracked in the page file allocator.
      */
     private Ranges storedFreeList = new Ranges();
-    private final ExecutorService worker;
+    /** The pages allocated and freed in the storedFreeList since the free list was last stored */
+    private final Ranges freeListAllocated = new Ranges();
+    private final Ranges freeListFreed = new Ranges();
+    /** The pages of the stored free list records, the checkpoint first and then its deltas */
+    private final ArrayList<Integer> freeListRecords = new ArrayList<Integer>();
+    /** A checkpoint of the full free list gets stored once this many deltas have been stored */
+    private static final int FREE_LIST_MAX_DELTAS = 32;
+    /** Indexes the commits that have not been performed by page so snapshots can find page versions quickly */
+    final TranslationIndex translations = new TranslationIndex();
+    /** The pipeline stage which writes the closed batches, null if not using worker threads */
+    private final ExecutorService storeStage;
+    /** The pipeline stage which syncs, performs and releases the batches */
+    private final ExecutorService syncStage;
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+    private static final int STAGE_QUEUE_SIZE = 16;
+    /** Runs the group commit flushes, null if group commit is disabled */
+    private final ScheduledExecutorService flusher;
+    private final long flushDelay;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** Encodes the deferred updates in parallel, null if they are encoded serially */
+    private final ExecutorService encoders;
+    /** Holds the page images of the stored batches in write ahead log mode, otherwise null */
+    private final Journal journal;
+    private final long journalCheckpointSize;
+    /** Set when open snapshots postponed the last checkpoint */
+    private volatile boolean checkpointPending;
 
     public HawtTxPageFile(TxPageFileFactory factory, HawtPageFile pageFile) {
+        this(factory, pageFile, null);
+    }
+
+    public HawtTxPageFile(TxPageFileFactory factory, HawtPageFile pageFile, Journal journal) {
         this.pageFile = pageFile;
+        this.journal = journal;
+        this.journalCheckpointSize = factory.getJournalCheckpointSize();
         this.synch = factory.isSync();
+        this.trackUpdateHistory = factory.isTrackUpdateHistory();
+        this.allocationChunkSize = factory.getAllocationChunkSize();
+        this.batchSize = factory.getBatchSize();
+        this.adaptiveBatchSize = factory.isAdaptiveBatchSize();
+        this.minBatchSize = factory.getMinBatchSize();
+        this.maxBatchSize = factory.getMaxBatchSize();
         this.file = pageFile.getFile();
         this.allocator = pageFile.allocator();
         this.readCache = new ReadCache(pageFile, factory.getPageCache());
 
         if (factory.isUseWorkerThread()) {
-            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            storeStage = createStage("HawtDB Store");
+            syncStage = createStage("HawtDB Sync");
+        } else {
+            storeStage = null;
+            syncStage = null;
+        }
+
+        this.flushDelay = factory.getFlushDelay();
+        if (flushDelay > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
                 public Thread newThread(Runnable r) {
                     Thread rc = new Thread(r);
-                    rc.setName("HawtDB Worker");
+                    rc.setName("HawtDB Flusher");
                     rc.setDaemon(true);
                     return rc;
                 }
 
             });
         } else {
-            worker = null;
+            flusher = null;
         }
+
+        if (factory.getEncoderThreads() > 0) {
+            encoders = Executors.newFixedThreadPool(factory.getEncoderThreads(), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread rc = new Thread(r);
+                    rc.setName("HawtDB Encoder");
+                    rc.setDaemon(true);
+                    return rc;
+                }
+
+            });
+        } else {
+            encoders = null;
+        }
+    }
+
+    /**
+     * Creates a single threaded pipeline stage.  The queue is bounded, once
+     * it's full the thread handing off the work waits for the stage to make
+     * room.  Work handed off after the stage was shut down gets rejected with
+     * a RejectedExecutionException.
+     */
+    private static ExecutorService createStage(final String name) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(STAGE_QUEUE_SIZE),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread rc = new Thread(r);
+                        rc.setName(name);
+                        rc.setDaemon(true);
+                        return rc;
+                    }
+
+                }, new RejectedExecutionHandler() {
+
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        try {
+                            while (!executor.isShutdown()) {
+                                if (executor.getQueue().offer(r, 100, TimeUnit.MILLISECONDS)) {
+                                    // the stage may have shut down before it got queued.
+                                    if (executor.isShutdown() && executor.remove(r)) {
+                                        break;
+                                    }
+                                    return;
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("interrupted while waiting on " + name);
+                        }
+                        throw new RejectedExecutionException(name + " was shut down");
+                    }
+
+                });
     }
 
     public ReadCache readCache() {
@@ -260,23 +405,34 @@ public final class HawtTxPageFile implements TxPageFile {
     }
 
     public void close() {
-        if (worker != null) {
-            final CountDownLatch done = new CountDownLatch(1);
-            worker.execute(new Runnable() {
-
-                public void run() {
-                    done.countDown();
-                    worker.shutdownNow();
-                }
-
-            });
+        if (storeStage != null) {
+            // let the stages finish what was handed to them.
+            shutdown(storeStage);
+            shutdown(syncStage);
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
             try {
-                done.await();
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
             } catch (InterruptedException e) {
             }
         }
         flush();
         performBatches();
+        if (journal != null) {
+            checkpoint();
+        }
+        if (encoders != null) {
+            encoders.shutdown();
+        }
+    }
+
+    private static void shutdown(ExecutorService stage) {
+        stage.shutdown();
+        try {
+            stage.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+        }
     }
 
     @Override
@@ -289,7 +445,8 @@ public final class HawtTxPageFile implements TxPageFile {
                 + "  batches: {\n"
                 + "    performed: " + toString(performedBatches, storedBatches) + ",\n"
                 + "    stored: " + toString(storedBatches, storingBatches) + ",\n"
-                + "    storing: " + toString(storingBatches, openBatch) + ",\n"
+                + "    storing: " + toString(storingBatches, closedBatches) + ",\n"
+                + "    closed: " + toString(closedBatches, openBatch) + ",\n"
                 + "    open: " + toString(openBatch, null) + ",\n"
                 + "  }" + "\n"
                 + "}";
@@ -329,28 +486,35 @@ public final class HawtTxPageFile implements TxPageFile {
      * @param pageUpdates
      * @param flushCallbacks
      */
-    void commit(Snapshot snapshot, ConcurrentHashMap<Integer, Update> pageUpdates, ArrayList<Runnable> flushCallbacks) {
+    void commit(Snapshot snapshot, IntHashMap<Update> pageUpdates, ArrayList<Runnable> flushCallbacks) {
 
         boolean fullBatch = false;
         Commit commit = null;
-        synchronized (TRANSACTION_MUTEX) {
 
-            // we need to figure out the revision id of the this commit...
-            long rev;
-            if (snapshot != null) {
+        // Lets check for an OptimisticUpdateException
+        // verify that the new commit's updates don't conflict with a commit that occurred
+        // subsequent to the snapshot that this commit started operating on.
+        // We check before we get the mutex so that conflicting commits fail without
+        // contending on it.  Once we have it, only the commits made since the revision
+        // the check started at need to be looked at.
+
+        // Note: every deferred update has an entry in the pageUpdates, so no need to
+        // check to see if that map also conflicts.
+        long checked = -1;
+        if (snapshot != null) {
+            checked = openBatch.head;
+            snapshot.getTracker().commitCheck(pageUpdates);
+        }
 
-                // Lets check for an OptimisticUpdateException
-                // verify that the new commit's updates don't conflict with a commit that occurred
-                // subsequent to the snapshot that this commit started operating on.
+        synchronized (TRANSACTION_MUTEX) {
 
-                // Note: every deferred update has an entry in the pageUpdates, so no need to
-                // check to see if that map also conflicts.
-                rev = snapshot.getTracker().commitCheck(pageUpdates);
+            if (snapshot != null) {
+                snapshot.getTracker().commitCheck(pageUpdates, openBatch, checked);
                 snapshot.close();
-            } else {
-                rev = openBatch.head;
             }
-            rev++;
+
+            // we need to figure out the revision id of the this commit...
+            long rev = openBatch.head + 1;
 
 
             if (flushCallbacks != null) {
@@ -364,10 +528,18 @@ public final class HawtTxPageFile implements TxPageFile {
                 // TODO: we are inside the TRANSACTION_MUTEX ... and this seems CPU intensive..
                 // but it's better than always creating more commit entries.. as that slows down
                 // page look up (the have to iterate through all the commits).
+                int size = commit.updates.size();
                 commit.merge(pageFile.allocator(), rev, pageUpdates);
+                openBatch.pageCount += commit.updates.size() - size;
             } else {
                 commit = new Commit(rev, pageUpdates);
                 openBatch.commits.addLast(commit);
+                openBatch.pageCount += pageUpdates.size();
+            }
+
+            IntHashMap.Cursor<Update> cursor = pageUpdates.cursor();
+            while (cursor.next()) {
+                translations.add(cursor.key(), commit);
             }
 
             if (openBatch.base == -1) {
@@ -376,31 +548,63 @@ public final class HawtTxPageFile implements TxPageFile {
             openBatch.head = rev;
 
 
-            if (openBatch.pageCount() > updateBatchSize) {
+            if (openBatch.pageCount() > batchSize) {
+                trace("batch full.");
+                closeBatch();
                 fullBatch = true;
             }
         }
 
+        if (!fullBatch && flusher != null && flushCallbacks != null && !flushCallbacks.isEmpty()) {
+            scheduleFlush();
+        }
+
         if (fullBatch) {
-            trace("batch full.");
-            synchronized (HOUSE_KEEPING_MUTEX) {
+            if (storeStage != null) {
+                // The store stage's bounded queue keeps the closed batches from piling up.
+                scheduleStore();
+            } else {
                 storeBatches(false);
+                syncBatches();
             }
+        }
+    }
+
+    /**
+     * Hands off storing the closed batches to the store stage, which then
+     * hands off syncing them to the sync stage.  Every closed batch gets a
+     * store request queued, so once the store stage falls a full queue
+     * behind the committing threads have to wait on it.
+     */
+    private void scheduleStore() {
+        try {
+            storeStage.execute(new Runnable() {
+
+                public void run() {
+                    storeBatches(false);
+                    scheduleSync();
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            // we are closing, the final flush will store the batches.
+        }
+    }
 
-            if (worker != null) {
-                worker.execute(new Runnable() {
+    private void scheduleSync() {
+        if (syncScheduled.compareAndSet(false, true)) {
+            try {
+                syncStage.execute(new Runnable() {
 
                     public void run() {
-                        synchronized (HOUSE_KEEPING_MUTEX) {
-                            syncBatches();
-                        }
+                        syncScheduled.set(false);
+                        syncBatches();
                     }
 
                 });
-            } else {
-                synchronized (HOUSE_KEEPING_MUTEX) {
-                    syncBatches();
-                }
+            } catch (RejectedExecutionException e) {
+                // we are closing, the final flush will sync the batches.
+                syncScheduled.set(false);
             }
         }
     }
@@ -412,15 +616,19 @@ public final class HawtTxPageFile implements TxPageFile {
     public void reset() {
         synchronized (HOUSE_KEEPING_MUTEX) {
             batches.clear();
-            performedBatches = storedBatches = storingBatches = openBatch = new Batch(-1);
+            performedBatches = storedBatches = storingBatches = closedBatches = openBatch = new Batch(-1);
             batches.addFirst(openBatch);
 
             lastBatchPage = -1;
             readCache.cache().clear();
+            translations.clear();
 
             allocator.clear();
             storedFreeList.clear();
             storedFreeList.add(0, allocator.getLimit());
+            freeListAllocated.clear();
+            freeListFreed.clear();
+            freeListRecords.clear();
 
             // Initialize the file header..
             System.arraycopy(MAGIC, 0, header.magic, 0, MAGIC.length);
@@ -430,6 +638,9 @@ public final class HawtTxPageFile implements TxPageFile {
             header.pessimistic_recovery_page = -1;
             header.optimistic_recovery_page = -1;
             storeHeader();
+            if (journal != null) {
+                journal.truncate();
+            }
         }
     }
 
@@ -441,10 +652,11 @@ public final class HawtTxPageFile implements TxPageFile {
         synchronized (HOUSE_KEEPING_MUTEX) {
 
             batches.clear();
-            performedBatches = storedBatches = storingBatches = openBatch = new Batch(-1);
+            performedBatches = storedBatches = storingBatches = closedBatches = openBatch = new Batch(-1);
             batches.addFirst(openBatch);
             lastBatchPage = -1;
             readCache.cache().clear();
+            translations.clear();
 
             Buffer buffer = new Buffer(FILE_HEADER_SIZE);
             file.read(0, buffer);
@@ -457,11 +669,16 @@ public final class HawtTxPageFile implements TxPageFile {
             trace("recovery started.  header: %s", header);
 
             // Initialize the free page list.
+            freeListAllocated.clear();
+            freeListFreed.clear();
+            freeListRecords.clear();
             if (header.free_list_page >= 0) {
-                storedFreeList = loadObject(header.free_list_page);
+                storedFreeList = loadFreeList(header.free_list_page);
                 trace("loaded free page list: %s ", storedFreeList);
                 allocator.setFreeRanges(storedFreeList);
-                Extent.unfree(pageFile, header.free_list_page);
+                for (int page : freeListRecords) {
+                    Extent.unfree(pageFile, page);
+                }
             } else {
                 allocator.clear();
                 storedFreeList.add(0, allocator.getLimit());
@@ -487,7 +704,7 @@ public final class HawtTxPageFile implements TxPageFile {
                 if (consistencyCheckNeeded) {
                     // write could be corrupted.. lets be careful
                     try {
-                        batch = loadObject(pageId);
+                        batch = loadBatch(pageId);
                     } catch (Exception e) {
                         trace("incomplete batch at: %d", pageId);
                         // clear out any previously loaded batchs.. and
@@ -498,7 +715,7 @@ public final class HawtTxPageFile implements TxPageFile {
                     }
                 } else {
                     // it should load fine..
-                    batch = loadObject(pageId);
+                    batch = loadBatch(pageId);
                 }
 
                 batch.page = pageId;
@@ -537,31 +754,85 @@ public final class HawtTxPageFile implements TxPageFile {
 
                 // Perform the updates..
                 performBatches();
-                syncBatches();
+                if (synch) {
+                    file.sync();
+                }
+                syncBatches(closedBatches);
+            }
+
+            if (journal != null) {
+                replayJournal();
+            }
+        }
+    }
+
+    /**
+     * Redoes the batches which were appended to the journal since the last
+     * checkpoint.  Their page images get written to the original page locations
+     * and then a checkpoint makes the page file consistent again.
+     */
+    private void replayJournal() {
+        int replayed = 0;
+        long position = 0;
+        while (position < journal.position()) {
+            ByteBuffer record = journal.read(position);
+            if (record == null) {
+                // the rest of the journal was not completely written.
+                break;
+            }
+            replayJournalRecord(record);
+            replayed++;
+            position = journal.next(position);
+        }
+        trace("replayed %d journal records.", replayed);
+
+        if (replayed > 0) {
+            allocator.setFreeRanges(storedFreeList);
+            for (int page : freeListRecords) {
+                Extent.unfree(pageFile, page);
             }
         }
+        if (journal.position() > 0) {
+            writeCheckpoint();
+        }
     }
 
     /* (non-Javadoc)
      * @see org.fusesource.hawtdb.internal.page.TransactionalPageFile#flush()
      */
     public void flush() {
-        synchronized (HOUSE_KEEPING_MUTEX) {
-            storeBatches(true);
-            syncBatches();
-        }
+        storeBatches(true);
+        syncBatches();
     }
 
     public void flush(final Runnable onComplete) {
-        if (worker != null) {
-            worker.execute(new Runnable() {
-
-                public void run() {
-                    flush();
-                    onComplete.run();
+        if (flusher != null) {
+            // group commit: the callback runs once the open batch gets synced.
+            synchronized (TRANSACTION_MUTEX) {
+                openBatch.flushCallbacks.add(onComplete);
+            }
+            scheduleFlush();
+        } else if (storeStage != null) {
+            // the callback runs once the sync stage syncs the last closed batch.  The
+            // sync stage runs the callbacks of the synced batches holding the HOUSE_KEEPING_MUTEX.
+            boolean synced;
+            synchronized (HOUSE_KEEPING_MUTEX) {
+                synchronized (TRANSACTION_MUTEX) {
+                    if (openBatch.base != -1) {
+                        closeBatch();
+                    }
+                    synced = storingBatches == openBatch;
+                    if (!synced) {
+                        openBatch.getPrevious().flushCallbacks.add(onComplete);
+                    }
                 }
-
-            });
+            }
+            if (synced) {
+                // everything committed so far is already on disk.
+                onComplete.run();
+            } else {
+                scheduleStore();
+            }
         } else {
             flush();
             onComplete.run();
@@ -569,17 +840,46 @@ public final class HawtTxPageFile implements TxPageFile {
 
     }
 
+    /**
+     * Schedules a flush to occur within the flush delay unless one
+     * is already scheduled.  All the flush requests that arrive before
+     * the flush runs share its file sync.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(new Runnable() {
+
+                    public void run() {
+                        flushScheduled.set(false);
+                        flush();
+                    }
+
+                }, flushDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // we are closing, the final flush will run the callbacks.
+                flushScheduled.set(false);
+            }
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////
     //
     // Methods which transition bathes through their life cycle states:
-    // open -> storing -> stored -> performing -> performed -> released
+    // open -> closed -> storing -> stored -> performing -> performed -> released
     //
     //   state: open - you can add additional commits to the batch
     //
     //   on: batch size limit reached
+    //
+    //   state: closed - no more commits get added, the batch is waiting to get written.
+    //
     //   action: write the batch to disk
     //           update optimistic_recovery_page
     //
+    // When using worker threads, the batches are written on the store stage thread while
+    // the sync stage thread syncs, performs and releases the previously written batches.
+    //
     //   state: storing - batch was written to disk, but not synced.. batch may be lost on failure.
     //
     //      on: disk sync
@@ -607,37 +907,73 @@ public final class HawtTxPageFile implements TxPageFile {
     //
     // /////////////////////////////////////////////////////////////////
     /**
-     * Attempts to perform a batch state change: open -> storing
+     * Performs a batch state change: open -> closed.  Must be called
+     * while holding the TRANSACTION_MUTEX.
      */
-    private void storeBatches(boolean force) {
-        Batch batch;
+    private void closeBatch() {
+        openBatch = new Batch(openBatch.head);
+        batches.addLast(openBatch);
+    }
 
-        // We synchronized /w the transactions so that they see the state change.
-        synchronized (TRANSACTION_MUTEX) {
-            // Re-checking since storing the batch may not be needed.
-            if ((force && openBatch.base != -1) || openBatch.pageCount() > updateBatchSize) {
-                batch = openBatch;
-                openBatch = new Batch(batch.head);
-                batches.addLast(openBatch);
-            } else {
-                return;
+    /**
+     * Attempts to perform a batch state change: closed -> storing
+     *
+     * @param force close the open batch first if it has any commits.
+     */
+    private void storeBatches(boolean force) {
+        synchronized (STORE_MUTEX) {
+            if (force) {
+                synchronized (TRANSACTION_MUTEX) {
+                    if (openBatch.base != -1) {
+                        closeBatch();
+                    }
+                }
             }
-        }
 
-        // Write any outstanding deferred cache updates...
-        batch.performDeferredUpdates(pageFile);
+            while (closedBatches != openBatch) {
+                Batch batch = closedBatches;
+                pagesSinceSync.addAndGet(batch.pageCount());
+
+                // Write any outstanding deferred cache updates...  They may read the shadow
+                // pages of the earlier batches, so keep those from getting released meanwhile.
+                Batch pinned;
+                synchronized (HOUSE_KEEPING_MUTEX) {
+                    pinned = performedBatches;
+                    pinned.snapshots.incrementAndGet();
+                }
+                try {
+                    batch.performDeferredUpdates(pageFile, translations, encoders, allocationChunkSize);
+                } finally {
+                    pinned.snapshots.decrementAndGet();
+                }
 
-        // Link it to the last batch.
-        batch.previous = lastBatchPage;
+                if (journal != null) {
+                    // The journal record is all that's needed to recover the batch, so
+                    // the header does not change until the next checkpoint.
+                    journal.append(journal.position(), journalRecord(batch), null);
+                    trace("journaled batch: %s", batch);
 
-        // Store the batch record.
-        lastBatchPage = batch.page = storeObject(batch);
-        trace("stored batch: %s", batch);
+                    synchronized (HOUSE_KEEPING_MUTEX) {
+                        closedBatches = batch.getNext();
+                    }
+                    continue;
+                }
 
+                // Link it to the last batch.
+                batch.previous = lastBatchPage;
 
-        // Update the header to know about the new batch page.
-        header.optimistic_recovery_page = batch.page;
-        storeHeader();
+                // Store the batch record.
+                lastBatchPage = batch.page = storeBatch(batch);
+                trace("stored batch: %s", batch);
+
+                synchronized (HOUSE_KEEPING_MUTEX) {
+                    // Update the header to know about the new batch page.
+                    header.optimistic_recovery_page = batch.page;
+                    storeHeader();
+                    closedBatches = batch.getNext();
+                }
+            }
+        }
     }
 
     /**
@@ -650,11 +986,152 @@ public final class HawtTxPageFile implements TxPageFile {
      * </ul>
      */
     private void syncBatches() {
+        synchronized (SYNC_MUTEX) {
+            // Only the batches written before the sync starts are known to be on disk after it.
+            Batch written;
+            synchronized (HOUSE_KEEPING_MUTEX) {
+                written = closedBatches;
+            }
 
-        // This is a slow operation..
-        if (synch) {
-            file.sync();
+            // This is a slow operation.. batches can keep getting written while it runs.
+            long syncTime = 0;
+            if (synch) {
+                long start = System.nanoTime();
+                if (journal != null) {
+                    journal.sync();
+                } else {
+                    file.sync();
+                }
+                syncTime = System.nanoTime() - start;
+            }
+
+            synchronized (HOUSE_KEEPING_MUTEX) {
+                if (synch && adaptiveBatchSize) {
+                    adaptBatchSize(syncTime);
+                }
+                syncBatches(written);
+            }
+
+            // A commit which landed in the open batch while the sync ran keeps the group
+            // commit flush requests parked on it from completing, they need another flush.
+            if (flusher != null) {
+                boolean parked;
+                synchronized (TRANSACTION_MUTEX) {
+                    parked = !openBatch.flushCallbacks.isEmpty();
+                }
+                if (parked) {
+                    scheduleFlush();
+                }
+            }
+
+            if (journal != null && (checkpointPending || journal.position() > journalCheckpointSize)) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Makes the performed batches durable in the page file so that the
+     * journal can be truncated.  All the journaled batches have to be
+     * performed first.  No batches get journaled while it runs, so it syncs
+     * and performs the ones journaled since the last sync itself.  Only the
+     * batches which open snapshots keep from being performed can postpone
+     * it, it then happens once those snapshots close.
+     */
+    private void checkpoint() {
+        synchronized (SYNC_MUTEX) {
+            synchronized (STORE_MUTEX) {
+                Batch written;
+                synchronized (HOUSE_KEEPING_MUTEX) {
+                    written = closedBatches;
+                }
+                if (storingBatches != written) {
+                    if (synch) {
+                        journal.sync();
+                    }
+                    synchronized (HOUSE_KEEPING_MUTEX) {
+                        syncBatches(written);
+                    }
+                }
+
+                synchronized (HOUSE_KEEPING_MUTEX) {
+                    if (storedBatches != closedBatches) {
+                        checkpointPending = true;
+                        trace("checkpoint postponed, open snapshots keep journaled batches from being performed.");
+                        return;
+                    }
+                    checkpointPending = false;
+                    writeCheckpoint();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called once the last of the snapshots opened while a batch was the
+     * open batch closes, so a postponed checkpoint might be able to happen.
+     * Without worker threads or group commit, it happens on the next flush.
+     */
+    void headSnapshotsClosed() {
+        if (checkpointPending) {
+            if (syncStage != null) {
+                scheduleSync();
+            } else if (flusher != null) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    public int getAllocatedPages() {
+        // the allocators are guarded by their own monitor.
+        synchronized (allocator) {
+            return allocator.getLimit() - allocator.getFreeRanges().size();
+        }
+    }
+
+    public int truncate() {
+        flush();
+        synchronized (STORE_MUTEX) {
+            synchronized (HOUSE_KEEPING_MUTEX) {
+                performBatches();
+                if (storedBatches != closedBatches || performedBatches != storedBatches) {
+                    trace("truncation postponed, not all the batches have been released.");
+                    return -1;
+                }
+
+                // Recovery must not refer to pages past the cut, so the free list
+                // records get rewritten in front of the free pages.  The second
+                // record stores the previous records as freed.
+                storeFreeList(true);
+                storeFreeList(false);
+                file.sync();
+                if (journal != null) {
+                    journal.truncate();
+                }
+
+                // Holding the allocator keeps transactions from allocating the cut off pages meanwhile.
+                synchronized (allocator) {
+                    int end = allocator.getLimit();
+                    Ranges.Range tail = allocator.getFreeRanges().floor(end - 1);
+                    if (tail != null && tail.end == end) {
+                        end = tail.start;
+                    }
+                    int pages = pageFile.truncate(end);
+                    trace("truncated the file to %d pages.", pages);
+                    return pages;
+                }
+            }
         }
+    }
+
+    private void writeCheckpoint() {
+        storeFreeList();
+        file.sync();
+        journal.truncate();
+        trace("checkpoint completed.  header: %s", header);
+    }
+
+    private void syncBatches(Batch written) {
 
         // Update the base_revision with the last performed revision.
         if (performedBatches != storedBatches) {
@@ -663,25 +1140,19 @@ public final class HawtTxPageFile implements TxPageFile {
         }
 
         // Were there some batches in the stored state?
-        if (storingBatches != openBatch) {
+        if (storingBatches != written) {
 
             // Callback the runnables which were waiting for the updates to be
             // fully flushed to disk.
             Batch cur = storingBatches;
-            while (cur != openBatch) {
-                for (Runnable runnable : storingBatches.flushCallbacks) {
-                    try {
-                        runnable.run();
-                    } catch (Throwable e) {
-                        e.printStackTrace();
-                    }
-                }
+            while (cur != written) {
+                runFlushCallbacks(cur.flushCallbacks);
                 cur = cur.getNext();
             }
 
 
             // The last stored is actually synced now..
-            Batch lastStoredBatch = openBatch.getPrevious();
+            Batch lastStoredBatch = written.getPrevious();
             // Let the header know about it..
             header.pessimistic_recovery_page = lastStoredBatch.page;
             if (header.optimistic_recovery_page == header.pessimistic_recovery_page) {
@@ -691,10 +1162,23 @@ public final class HawtTxPageFile implements TxPageFile {
             // We synchronized /w the transactions so that they see the state change.
             synchronized (TRANSACTION_MUTEX) {
                 // Transition stored -> synced.
-                storingBatches = openBatch;
+                storingBatches = written;
             }
         }
 
+        // If the open batch is empty and all the closed batches were synced, everything
+        // committed so far is on disk now so flush requests waiting on the open batch can complete.
+        ArrayList<Runnable> callbacks = null;
+        synchronized (TRANSACTION_MUTEX) {
+            if (written == openBatch && openBatch.base == -1 && !openBatch.flushCallbacks.isEmpty()) {
+                callbacks = openBatch.flushCallbacks;
+                openBatch.flushCallbacks = new ArrayList<Runnable>();
+            }
+        }
+        if (callbacks != null) {
+            runFlushCallbacks(callbacks);
+        }
+
         // apply any batches that can be applied..
         performBatches();
 
@@ -702,7 +1186,8 @@ public final class HawtTxPageFile implements TxPageFile {
         // it's allocated recovery space can be released.
         while (performedBatches != storedBatches) {
 
-            if (performedBatches.snapshots != 0) {
+            // older batches are released, so only the batch's own snapshots can be using it.
+            if (performedBatches.snapshots.get() != 0) {
                 break;
             }
 
@@ -713,28 +1198,121 @@ public final class HawtTxPageFile implements TxPageFile {
             // Free the update pages associated with the batch.
             performedBatches.release(allocator);
 
-            // Free the batch record itself.
-            Extent.free(pageFile, performedBatches.page);
+            // Free the batch record itself, journaled batches don't have one.
+            if (performedBatches.page >= 0) {
+                Extent.free(pageFile, performedBatches.page);
+            }
 
             // don't need to sync /w transactions since they don't use the performedBatches variable.
             // Transition performed -> released
             performedBatches = performedBatches.getNext();
 
             // removes the released batch form the batch list.
-            performedBatches.getPrevious().unlink();
+            synchronized (TRANSACTION_MUTEX) {
+                performedBatches.getPrevious().unlink();
+            }
+        }
+
+        // In write ahead log mode the free list gets stored at the checkpoints.
+        if (journal == null) {
+            storeFreeList();
+        }
+    }
+
+    /**
+     * Stores the changes made to the free list since it was last stored
+     * as a delta record, or the full free list as a checkpoint once there
+     * are too many deltas to replay on recovery.
+     */
+    private void storeFreeList() {
+        storeFreeList(false);
+    }
+
+    /**
+     * @param checkpoint if true the full free list gets stored even if
+     *        there are just a few deltas.
+     */
+    private void storeFreeList(boolean checkpoint) {
+        if (!checkpoint && header.free_list_page >= 0 && freeListAllocated.isEmpty() && freeListFreed.isEmpty()) {
+            storeHeader();
+            return;
         }
 
-        // Store the free list..
-        int previousFreeListPage = header.free_list_page;
-        header.free_list_page = storeObject(storedFreeList);
+        ArrayList<Integer> released = null;
+        if (checkpoint || header.free_list_page < 0 || freeListRecords.size() > FREE_LIST_MAX_DELTAS) {
+            // Compact the chain into a checkpoint.
+            released = new ArrayList<Integer>(freeListRecords);
+            freeListRecords.clear();
+            header.free_list_page = storeFreeListRecord(-1);
+        } else {
+            header.free_list_page = storeFreeListRecord(header.free_list_page);
+        }
+        freeListRecords.add(header.free_list_page);
+        freeListAllocated.clear();
+        freeListFreed.clear();
+        if (journal != null) {
+            // The journal gets truncated after the checkpoint, so the header
+            // can't refer to records which might not be on disk.
+            file.sync();
+        }
         storeHeader();
+        if (journal != null && released != null) {
+            // The released records can get reused once freed.
+            file.sync();
+        }
+
+        // Release the previous free list records.
+        if (released != null) {
+            for (int page : released) {
+                Extent.free(pageFile, page);
+            }
+        }
+    }
 
-        // Release the previous free list.
-        if (previousFreeListPage >= 0) {
-            Extent.free(pageFile, previousFreeListPage);
+    private void runFlushCallbacks(ArrayList<Runnable> callbacks) {
+        for (Runnable runnable : callbacks) {
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    /**
+     * Sizes the batches so that about 2 syncs worth of page updates
+     * get stored per batch at the current commit rate.  A slow sync
+     * or a high commit rate results in bigger batches so that fewer
+     * syncs are needed, while a light load gets smaller batches
+     * which reach the disk sooner.
+     *
+     * @param syncTime how long the last file sync took in nanoseconds.
+     */
+    private void adaptBatchSize(long syncTime) {
+        long now = System.nanoTime();
+        long elapsed = now - lastSyncTime;
+        lastSyncTime = now;
+        adaptBatchSize(syncTime, pagesSinceSync.getAndSet(0), elapsed);
+    }
+
+    /**
+     * @param syncTime how long the last file sync took in nanoseconds.
+     * @param pages the number of page updates stored since the previous sync.
+     * @param elapsed the nanoseconds which passed since the previous sync.
+     */
+    void adaptBatchSize(long syncTime, int pages, long elapsed) {
+        syncLatency = syncLatency == 0 ? syncTime : (syncLatency * 3 + syncTime) / 4;
+        if (elapsed <= 0 || pages == 0) {
+            return;
+        }
+
+        // the number of page updates which get committed while a sync is in progress.
+        long target = 2 * pages * syncLatency / elapsed;
+        long size = (batchSize * 3L + target) / 4;
+        batchSize = (int) Math.max(minBatchSize, Math.min(maxBatchSize, size));
+        trace("batch size adapted to: %d", batchSize);
+    }
+
     /**
      * Attempts to perform a batch state change: stored -> performed
      *
@@ -748,22 +1326,29 @@ public final class HawtTxPageFile implements TxPageFile {
             return;
         }
 
-        // The last performed batch MIGHT still have an open snapshot.
-        // we can't transition from synced, until that snapshot closes.
-        Batch lastPerformed = storedBatches.getPrevious();
-        if (lastPerformed != null && lastPerformed.snapshots != 0) {
-            return;
+        // A snapshot opened while a batch was the open batch does not see all of
+        // its commits.  It still needs the original pages, so we can't transition
+        // that batch from synced until those snapshots close.  New snapshots
+        // are opened against the open batch so they can't hold back the batches
+        // we are looking at.
+        Batch limit = storedBatches;
+        while (limit != storingBatches && limit.headSnapshots.get() == 0) {
+            limit = limit.getNext();
         }
 
-        while (storedBatches != storingBatches) {
+        while (storedBatches != limit) {
 
             trace("Performing batch: %s", storedBatches);
 
             // Performing the batch actually applies the updates to the original page locations.
             for (Commit commit : storedBatches) {
-                for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
-                    int page = entry.getKey();
-                    Update update = entry.getValue();
+                // Visit the pages in order so that contiguous shadow pages which go to
+                // contiguous original pages can be copied as a single run.
+                int runPage = -1;
+                int runShadow = -1;
+                int runLength = 0;
+                for (int page : commit.updates.sortedKeys()) {
+                    Update update = commit.updates.get(page);
 
                     if (traced(page) || (update.shadowed() && traced(update.shadow()))) {
                         trace("performing update at %d %s", page, update);
@@ -784,11 +1369,13 @@ public final class HawtTxPageFile implements TxPageFile {
                         if (traced(page) || traced(update.shadow())) {
                             trace("performing shadow update on %d from %d", page, update.shadow());
                         }
-                        ByteBuffer slice = pageFile.slice(SliceType.READ, update.shadow(), 1);
-                        try {
-                            pageFile.write(page, slice);
-                        } finally {
-                            pageFile.unslice(slice);
+                        if (runLength > 0 && page == runPage + runLength && update.shadow() == runShadow + runLength) {
+                            runLength++;
+                        } else {
+                            copyPages(runShadow, runPage, runLength);
+                            runPage = page;
+                            runShadow = update.shadow();
+                            runLength = 1;
                         }
 
                     }
@@ -801,10 +1388,10 @@ public final class HawtTxPageFile implements TxPageFile {
                             allocator.unfree(page, 1);
                         }
                         // Update the persistent free list.  This gets stored on the next sync.
-                        storedFreeList.remove(page, 1);
+                        storedAlloc(page);
 
                     } else if (update.freed()) {
-                        storedFreeList.add(page, 1);
+                        storedFree(page);
                     }
 
                     // update the read cache..
@@ -818,21 +1405,54 @@ public final class HawtTxPageFile implements TxPageFile {
                     }
 
                 }
+                copyPages(runShadow, runPage, runLength);
             }
 
             storedBatches.performed = true;
 
+            // Snapshots read the original pages now.  Remove the commits from the index before
+            // new snapshots can be based on later batches, since the shadow pages get released.
+            for (Commit commit : storedBatches) {
+                IntHashMap.Cursor<Update> cursor = commit.updates.cursor();
+                while (cursor.next()) {
+                    translations.remove(cursor.key(), commit);
+                }
+            }
+
             // We synchronized /w the transactions so that they see the state change.
             synchronized (TRANSACTION_MUTEX) {
                 // Transition synced -> performed
                 storedBatches = storedBatches.getNext();
             }
+        }
+    }
 
-            lastPerformed = storedBatches.getPrevious();
-            // We have to stop if the last batch performed has an open snapshot.
-            if (lastPerformed.snapshots != 0) {
-                break;
-            }
+    private void storedAlloc(int page) {
+        storedFreeList.remove(page, 1);
+        freeListFreed.remove(page, 1);
+        freeListAllocated.add(page, 1);
+    }
+
+    private void storedFree(int page) {
+        storedFreeList.add(page, 1);
+        freeListAllocated.remove(page, 1);
+        freeListFreed.add(page, 1);
+    }
+
+    /**
+     * Copies a run of contiguous pages with a single multi page slice.
+     */
+    private void copyPages(int from, int to, int count) {
+        if (count == 0) {
+            return;
+        }
+        performedRuns.incrementAndGet();
+        performedPages.addAndGet(count);
+        ByteBuffer slice = pageFile.slice(SliceType.READ, from, count);
+        try {
+            pageFile.write(to, slice);
+        } finally {
+            pageFile.unslice(slice);
         }
     }
 
@@ -849,11 +1469,11 @@ public final class HawtTxPageFile implements TxPageFile {
             if (commit != null) {
                 if (commit.snapshotTracker == null) {
                     // So we can track the new snapshot...
-                    commit.snapshotTracker = new SnapshotTracker(openBatch, commit);
+                    commit.snapshotTracker = new SnapshotTracker(openBatch, commit, translations);
                 }
                 tracker = commit.snapshotTracker;
             } else {
-                tracker = new SnapshotTracker(openBatch, null);
+                tracker = new SnapshotTracker(openBatch, null, translations);
             }
 
             // Open the snapshot
@@ -864,27 +1484,159 @@ public final class HawtTxPageFile implements TxPageFile {
     // /////////////////////////////////////////////////////////////////
     // Helper methods
     // /////////////////////////////////////////////////////////////////
-    private int storeObject(Object value) {
+    /**
+     * @param previous the record the delta builds on, or -1 to store a checkpoint.
+     */
+    private int storeFreeListRecord(int previous) {
         try {
             ExtentOutputStream eos = new ExtentOutputStream(pageFile);
-            ObjectOutputStream oos = new ObjectOutputStream(eos);
-            oos.writeObject(value);
-            oos.close();
+            if (previous < 0) {
+                FreeListCodec.storeCheckpoint(storedFreeList, eos);
+            } else {
+                FreeListCodec.storeDelta(previous, freeListAllocated, freeListFreed, eos);
+            }
+            eos.close();
             return eos.getPage();
         } catch (IOException e) {
             throw new IOPagingException(e);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private <T> T loadObject(int pageId) {
+    /**
+     * Loads the free list record chain which ends at the page and
+     * applies the deltas to the checkpoint.  The pages of the loaded
+     * records are added to the freeListRecords.
+     */
+    private Ranges loadFreeList(int pageId) {
+        LinkedList<FreeListCodec.Record> chain = new LinkedList<FreeListCodec.Record>();
+        while (true) {
+            FreeListCodec.Record record;
+            try {
+                ExtentInputStream eis = new ExtentInputStream(pageFile, pageId);
+                try {
+                    record = FreeListCodec.load(eis);
+                } finally {
+                    eis.close();
+                }
+            } catch (IOException e) {
+                throw new IOPagingException(e);
+            }
+            chain.addFirst(record);
+            freeListRecords.add(0, pageId);
+            if (record.type == FreeListCodec.CHECKPOINT) {
+                break;
+            }
+            pageId = record.previous;
+        }
+
+        Ranges rc = chain.removeFirst().freed;
+        for (FreeListCodec.Record delta : chain) {
+            rc.remove(delta.allocated);
+            rc.add(delta.freed);
+        }
+        return rc;
+    }
+
+    private int storeBatch(Batch batch) {
         try {
-            ExtentInputStream eis = new ExtentInputStream(pageFile, pageId);
-            ObjectInputStream ois = new ObjectInputStream(eis);
-            return (T) ois.readObject();
+            ExtentOutputStream eos = new ExtentOutputStream(pageFile);
+            BatchCodec.store(batch, eos);
+            eos.close();
+            return eos.getPage();
         } catch (IOException e) {
             throw new IOPagingException(e);
-        } catch (ClassNotFoundException e) {
+        }
+    }
+
+    /**
+     * Encodes the journal record of a batch.  It holds the batch record, for the
+     * allocated and freed pages, followed by the number of page images and then
+     * each original page number with the contents it has once the batch is performed.
+     */
+    private ByteBuffer journalRecord(Batch batch) {
+        try {
+            DataByteArrayOutputStream batchRecord = new DataByteArrayOutputStream(1024);
+            BatchCodec.store(batch, batchRecord);
+            Buffer encoded = batchRecord.toBuffer();
+
+            int pageSize = pageFile.getPageSize();
+            DataByteArrayOutputStream os = new DataByteArrayOutputStream(8 + encoded.length + batch.pageCount() * (4 + pageSize));
+            os.writeInt(encoded.length);
+            os.write(encoded.data, encoded.offset, encoded.length);
+
+            // the images get written after their count.
+            int countPosition = os.position();
+            os.writeInt(0);
+            int count = 0;
+            Buffer image = new Buffer(pageSize);
+            for (Commit commit : batch) {
+                for (int page : commit.updates.sortedKeys()) {
+                    Update update = commit.updates.get(page);
+                    if (update.shadowed()) {
+                        pageFile.read(update.shadow(), image);
+                    } else if (update.allocated()) {
+                        pageFile.read(page, image);
+                    } else {
+                        continue;
+                    }
+                    os.writeInt(page);
+                    os.write(image.data, image.offset, image.length);
+                    count++;
+                }
+            }
+            int end = os.position();
+            os.position(countPosition);
+            os.writeInt(count);
+            os.position(end);
+
+            Buffer rc = os.toBuffer();
+            return ByteBuffer.wrap(rc.data, rc.offset, rc.length);
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private void replayJournalRecord(ByteBuffer record) {
+        try {
+            DataByteArrayInputStream is = new DataByteArrayInputStream(new Buffer(record.array(), record.arrayOffset() + record.position(), record.remaining()));
+            byte[] encoded = new byte[is.readInt()];
+            is.readFully(encoded);
+            Batch batch = BatchCodec.load(new ByteArrayInputStream(encoded));
+            trace("replaying journaled batch: %s", batch);
+
+            for (Commit commit : batch) {
+                IntHashMap.Cursor<Update> cursor = commit.updates.cursor();
+                while (cursor.next()) {
+                    if (cursor.value().allocated()) {
+                        storedAlloc(cursor.key());
+                    } else if (cursor.value().freed()) {
+                        storedFree(cursor.key());
+                    }
+                }
+            }
+
+            int pageSize = pageFile.getPageSize();
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                int page = is.readInt();
+                Buffer image = new Buffer(pageSize);
+                is.readFully(image.data);
+                pageFile.write(page, image);
+            }
+        } catch (IOException e) {
+            throw new IOPagingException(e);
+        }
+    }
+
+    private Batch loadBatch(int pageId) {
+        try {
+            ExtentInputStream eis = new ExtentInputStream(pageFile, pageId);
+            try {
+                return BatchCodec.load(eis);
+            } finally {
+                eis.close();
+            }
+        } catch (IOException e) {
             throw new IOPagingException(e);
         }
     }
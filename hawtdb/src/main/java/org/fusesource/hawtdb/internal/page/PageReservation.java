@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import org.fusesource.hawtdb.api.Allocator;
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+
+/**
+ * <p>
+ * Carves page allocations out of a chunk of pages which gets allocated
+ * from a shared {@link Allocator} in one go.  Most allocations are then
+ * served without taking the lock of the shared allocator.
+ * </p><p>
+ * A reservation is not thread safe, each transaction or store pass uses
+ * its own.  The pages which were not handed out must be given back to the
+ * shared allocator with {@link #release()}.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class PageReservation {
+
+    private final Allocator allocator;
+    private final int chunkSize;
+    private int next;
+    private int end;
+
+    /**
+     * @param chunkSize how many pages to reserve at a time, 0 disables the reservation.
+     */
+    PageReservation(Allocator allocator, int chunkSize) {
+        this.allocator = allocator;
+        this.chunkSize = chunkSize;
+    }
+
+    public int alloc(int count) throws OutOfSpaceException {
+        return alloc(count, -1);
+    }
+
+    /**
+     * Allocates from the reserved chunk, a new chunk gets reserved near the hint.
+     */
+    public int alloc(int count, int hint) throws OutOfSpaceException {
+        if( count <= end - next ) {
+            int rc = next;
+            next += count;
+            return rc;
+        }
+        // Large allocations would use up most of a chunk anyways.
+        if( count > chunkSize / 2 ) {
+            return allocator.alloc(count, hint);
+        }
+        release();
+        try {
+            next = allocator.alloc(chunkSize, hint);
+        } catch (OutOfSpaceException e) {
+            // too fragmented or nearly full, fall back to allocating just what is needed.
+            return allocator.alloc(count, hint);
+        }
+        end = next + chunkSize;
+        int rc = next;
+        next += count;
+        return rc;
+    }
+
+    /**
+     * Frees the reserved pages which were not allocated.
+     */
+    public void release() {
+        if( next < end ) {
+            allocator.free(next, end - next);
+        }
+        next = end = 0;
+    }
+
+    /**
+     * @return the number of reserved pages which have not been allocated yet.
+     */
+    public int remaining() {
+        return end - next;
+    }
+
+    @Override
+    public String toString() {
+        return "{ next: " + next + ", end: " + end + " }";
+    }
+
+}
@@ -16,12 +16,9 @@
  */
 package org.fusesource.hawtdb.internal.page;
 
-import java.util.Iterator;
-
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.OutOfSpaceException;
 import org.fusesource.hawtdb.internal.util.Ranges;
-import org.fusesource.hawtdb.internal.util.Ranges.Range;
 import static org.fusesource.hawtdb.internal.page.Logging.*;
 
 
@@ -32,6 +29,9 @@ import static org.fusesource.hawtdb.internal.page.Logging.*;
  */
 public class SimpleAllocator implements Allocator {
 
+    /** How many free ranges after a hinted position get looked at before giving up on the hint */
+    static final int HINT_RANGES = 16;
+
     private final Ranges freeRanges = new Ranges();
     private volatile int limit;
 
@@ -51,16 +51,28 @@ public class SimpleAllocator implements Allocator {
      * @see Allocator#alloc(int)
      */
     synchronized public int alloc(int size) throws OutOfSpaceException {
-        for (Iterator<Range> i = freeRanges.iterator(); i.hasNext();) {
-            Range r = (Range) i.next();
-            if( r.size() >= size ) {
-                int rc = r.start;
-                 op_trace("ALLOC", rc, size);
+        int rc = freeRanges.find(0, size, Integer.MAX_VALUE);
+        if( rc < 0 ) {
+            throw new OutOfSpaceException();
+        }
+        op_trace("ALLOC", rc, size);
+        freeRanges.remove(rc, size);
+        return rc;
+    }
+
+    /**
+     * @see Allocator#alloc(int, int)
+     */
+    synchronized public int alloc(int size, int hint) throws OutOfSpaceException {
+        if( hint >= 0 ) {
+            int rc = freeRanges.find(hint, size, HINT_RANGES);
+            if( rc >= 0 ) {
+                op_trace("ALLOC", rc, size);
                 freeRanges.remove(rc, size);
                 return rc;
             }
         }
-        throw new OutOfSpaceException();
+        return alloc(size);
     }
 
     
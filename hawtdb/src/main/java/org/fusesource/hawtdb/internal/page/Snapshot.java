@@ -27,8 +27,13 @@ package org.fusesource.hawtdb.internal.page;
  * view remains consistent.  Direct updates to data in that range is now allowed 
  * while the snapshot is open.
  * </p><p>
- * When a snapshot is opened and closed, reference counters on the all 
- * Batch objects between the base and the head get adjusted.
+ * When a snapshot is opened and closed, only reference counters on the
+ * base Batch and the Batch that was open at the time get adjusted, so it
+ * takes constant time no matter how many batches have not been performed yet.
+ * The base can't be released while the snapshot is open since the snapshot
+ * may be reading its shadow pages.  The snapshot only sees part of the
+ * batch that was open, so that batch can't be performed while the snapshot
+ * is open.
  * </p>
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -46,34 +51,32 @@ final class Snapshot {
         this.latest = latest;
     }
     
+    /**
+     * Must be called while holding the TRANSACTION_MUTEX.
+     */
     public Snapshot open() {
-        tracker.snapshots++;
-        Batch cur = base;
-        while( true ) {
-            cur.snapshots++;
-            if(cur == latest) {
-                break;
-            }
-            cur = cur.getNext();
-            
-        }
+        tracker.snapshots.incrementAndGet();
+        base.snapshots.incrementAndGet();
+        latest.headSnapshots.incrementAndGet();
         return this;
     }
     
+    /**
+     * Closing does not need the TRANSACTION_MUTEX unless this was the last
+     * snapshot open on the tracker.
+     */
     public void close() {
-        synchronized(parent.TRANSACTION_MUTEX) {
-            tracker.snapshots--;
-            Batch cur = base;
-            while( true ) {
-                cur.snapshots--;
-                if(cur == latest) {
-                    break;
-                }
-                cur = cur.getNext();
-            }
+        base.snapshots.decrementAndGet();
+        if( latest.headSnapshots.decrementAndGet()==0 ) {
+            parent.headSnapshotsClosed();
+        }
 
-            if( tracker.snapshots==0 && tracker.parentCommit!=null ) {
-                tracker.parentCommit.snapshotTracker = null;
+        if( tracker.snapshots.decrementAndGet()==0 && tracker.parentCommit!=null ) {
+            synchronized(parent.TRANSACTION_MUTEX) {
+                // a snapshot could have been opened on the tracker since.
+                if( tracker.snapshots.get()==0 && tracker.parentCommit.snapshotTracker==tracker ) {
+                    tracker.parentCommit.snapshotTracker = null;
+                }
             }
         }
     }
@@ -16,9 +16,11 @@
  */
 package org.fusesource.hawtdb.internal.page;
 
-import java.util.Map;
-
+import org.fusesource.hawtdb.api.OptimisticUpdateException;
 import org.fusesource.hawtdb.api.PagedAccessor;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 
@@ -32,19 +34,21 @@ final class SnapshotTracker {
 
     final Batch parentBatch;
     final Commit parentCommit;
+    final TranslationIndex index;
     final long headRevision;
     /** The number of times this snapshot has been opened. */
-    protected volatile int snapshots;
+    final AtomicInteger snapshots = new AtomicInteger();
     
-    public SnapshotTracker(Batch parentBatch, Commit parentCommit) {
+    public SnapshotTracker(Batch parentBatch, Commit parentCommit, TranslationIndex index) {
         this.parentBatch = parentBatch;
         this.parentCommit = parentCommit;
+        this.index = index;
         Commit lastEntry = this.parentBatch.commits.getTail();
         this.headRevision = (lastEntry == null ? this.parentBatch.head : lastEntry.getHeadRevision())+1;
     }
     
     public String toString() { 
-        return "{ references: "+this.snapshots+" }";
+        return "{ references: "+this.snapshots.get()+" }";
     }
 
     public long getHeadRevision() {
@@ -56,40 +60,18 @@ final class SnapshotTracker {
             return page;
         }
 
-        int rc = page;
-        // Look for the page in the previous commits..
-        Batch batch = parentBatch;
-        Commit commit = parentCommit;
-        outer: while( true ) {
-            if( batch.isPerformed() ) {
-                break;
-            }
-            
-            Commit first = null;
-            while( true ) {
-                if( first == null ) {
-                    first = commit;
-                } else if( first==commit ) {
-                    break;
-                }
-                
-                Update update = commit.updates.get(rc);
-                if( update!=null ) {
-                    if( update.shadowed() ) {
-                        rc = update.shadow();
-                    }
-                    break outer;
-                }
-                commit = commit.getPreviousCircular();
-            }
-            
-            batch = batch.getPrevious();
-            if( batch==null ) {
-                break;
+        // Look for the page in the commits visible to the snapshot..
+        Commit[] versions = index.versions(page);
+        if( versions == null ) {
+            return page;
+        }
+        for( int i=TranslationIndex.search(versions, parentCommit.getBaseRevision()); i >= 0; i-- ) {
+            Update update = versions[i].updates.get(page);
+            if( update!=null ) {
+                return update.shadowed() ? update.shadow() : page;
             }
-            commit = batch.commits.getTail();
         }
-        return rc;
+        return page;
     }
     
     
@@ -98,60 +80,88 @@ final class SnapshotTracker {
             return null;
         }
 
-        Batch batch = parentBatch;
-        Commit commit = parentCommit;
-
-
-        while( true ) {
-            if( batch.isPerformed() ) {
-                break;
-            }
-            
-            Commit tail = null;
-            while( true ) {
-                if( tail == null  ) {
-                    tail = commit;
-                } else if( tail==commit ) {
-                    break;
-                }
-
-                Update update = commit.updates.get(page);
-                if( update!=null ) {
-                    DeferredUpdate du  = update.deferredUpdate();
-                    if (du!=null) {
-                        return du.<T>value();
-                    }
+        Commit[] versions = index.versions(page);
+        if( versions == null ) {
+            return null;
+        }
+        for( int i=TranslationIndex.search(versions, parentCommit.getBaseRevision()); i >= 0; i-- ) {
+            Update update = versions[i].updates.get(page);
+            if( update!=null ) {
+                DeferredUpdate du  = update.deferredUpdate();
+                if (du!=null) {
+                    return du.<T>value();
                 }
-                commit = commit.getPreviousCircular();
-            }
-
-            batch = batch.getPrevious();
-            if( batch==null ) {
-                break;
             }
-            commit = batch.commits.getTail();
         }
         return null;
     }
 
-    public long commitCheck(Map<Integer, Update> pageUpdates) {
-        long rc= parentBatch.head;
-        Batch batch = parentBatch;
-        Commit commit = parentCommit==null ? batch.commits.getHead() : parentCommit.getNext();
+    /**
+     * Checks the page updates against the commits that occurred after
+     * this snapshot.  Those commits can't be performed while the snapshot
+     * is open, so they are all in the translation index and the check
+     * only has to look at the versions of the updated pages.
+     *
+     * @throws OptimisticUpdateException if a conflict is found.
+     */
+    public void commitCheck(IntHashMap<Update> pageUpdates) {
+        long base = parentCommit==null ? Long.MIN_VALUE : parentCommit.getBaseRevision();
+        IntHashMap.Cursor<Update> cursor = pageUpdates.cursor();
+        while( cursor.next() ) {
+            int page = cursor.key();
+            Commit[] versions = index.versions(page);
+            if( versions==null ) {
+                continue;
+            }
+            for( int i=versions.length-1; i >= 0 && versions[i].getBaseRevision() > base; i-- ) {
+                // merges can cancel out an update, so make sure it's still there.
+                if( versions[i].updates.containsKey(page) ) {
+                    throw new OptimisticUpdateException();
+                }
+            }
+        }
+    }
 
-        while( true ) {
-            while( commit!=null ) {
-                rc = commit.commitCheck(pageUpdates);
-                commit = commit.getNext();
+    /**
+     * Finishes a {@link #commitCheck(IntHashMap)} which was done while the
+     * given revision was the head revision.  The commits up to that revision
+     * were fully visible to it, so only the commits which were added or
+     * merged into since then get checked.  Must be called while holding
+     * the TRANSACTION_MUTEX so that no commits get added meanwhile.
+     *
+     * @throws OptimisticUpdateException if a conflict is found.
+     */
+    public void commitCheck(IntHashMap<Update> pageUpdates, Batch openBatch, long revision) {
+        long base = parentCommit==null ? Long.MIN_VALUE : parentCommit.getBaseRevision();
+        for( Batch batch=openBatch; batch!=null && batch.head > revision; batch=batch.getPrevious() ) {
+            for( Commit commit=batch.commits.getTail(); commit!=null && commit.getHeadRevision() > revision; commit=commit.getPrevious() ) {
+                if( commit.getBaseRevision() <= base ) {
+                    return;
+                }
+                if( intersects(pageUpdates, commit.updates) ) {
+                    throw new OptimisticUpdateException();
+                }
             }
+        }
+    }
 
-            batch = batch.getNext();
-            if( batch==null ) {
-                break;
+    /**
+     * Walks the smaller of the maps, merged commits can hold many more
+     * updates than the commit being checked and the other way around.
+     */
+    private static boolean intersects(IntHashMap<Update> a, IntHashMap<Update> b) {
+        if( a.size() > b.size() ) {
+            IntHashMap<Update> t = a;
+            a = b;
+            b = t;
+        }
+        IntHashMap.Cursor<Update> cursor = a.cursor();
+        while( cursor.next() ) {
+            if( b.containsKey(cursor.key()) ) {
+                return true;
             }
-            commit = batch.commits.getHead();
         }
-        return rc;
+        return false;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import org.fusesource.hawtdb.internal.util.IntHashMap;
+
+/**
+ * <p>
+ * Indexes the commits which have not been performed yet by the pages
+ * they update.  Each page maps to its versions: the commits that updated
+ * it, ordered by their base revision.  A snapshot finds the version
+ * of a page it should see with a single lookup and a binary search
+ * instead of walking all the outstanding commits.
+ * </p><p>
+ * Updates are synchronized and never change a version array once it's
+ * in the map, they store a new copy instead.  The map publishes the copy
+ * with a volatile write, so lookups can be done without locking and
+ * always see fully built arrays.  Commits get added when they are linked
+ * into a batch and removed once their batch has been performed.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class TranslationIndex {
+
+    private final IntHashMap<Commit[]> pages = new IntHashMap<Commit[]>();
+
+    /**
+     * Adds a commit to the versions of a page, if it's not there already.
+     */
+    synchronized void add(int page, Commit commit) {
+        Commit[] versions = pages.get(page);
+        if (versions == null) {
+            pages.put(page, new Commit[] { commit });
+            return;
+        }
+
+        // Commits are usually added in revision order, so search from the end.
+        long base = commit.getBaseRevision();
+        int i = versions.length;
+        while (i > 0 && versions[i - 1].getBaseRevision() > base) {
+            i--;
+        }
+        if (i > 0 && versions[i - 1] == commit) {
+            return;
+        }
+
+        Commit[] rc = new Commit[versions.length + 1];
+        System.arraycopy(versions, 0, rc, 0, i);
+        rc[i] = commit;
+        System.arraycopy(versions, i, rc, i + 1, versions.length - i);
+        pages.put(page, rc);
+    }
+
+    /**
+     * Removes a commit from the versions of a page.
+     */
+    synchronized void remove(int page, Commit commit) {
+        Commit[] versions = pages.get(page);
+        if (versions == null) {
+            return;
+        }
+        int i = 0;
+        while (i < versions.length && versions[i] != commit) {
+            i++;
+        }
+        if (i == versions.length) {
+            return;
+        }
+        if (versions.length == 1) {
+            pages.remove(page);
+            return;
+        }
+
+        Commit[] rc = new Commit[versions.length - 1];
+        System.arraycopy(versions, 0, rc, 0, i);
+        System.arraycopy(versions, i + 1, rc, i, rc.length - i);
+        pages.put(page, rc);
+    }
+
+    synchronized void clear() {
+        pages.clear();
+    }
+
+    /**
+     * @return the commits which updated the page ordered oldest first,
+     *         or null if the page has no outstanding updates.  The array
+     *         must not be modified.
+     */
+    Commit[] versions(int page) {
+        return pages.get(page);
+    }
+
+    /**
+     * @return the index of the newest version which is visible at the
+     *         given revision or -1 if none are.
+     */
+    static int search(Commit[] versions, long revision) {
+        int low = 0;
+        int high = versions.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (versions[mid].getBaseRevision() <= revision) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+}
@@ -64,13 +64,21 @@ class Update implements Externalizable {
     byte flags;
     int shadow = -1;
 
-    ArrayList<String> history = new ArrayList<String>();
+    /** Debugging history of the update, only tracked when update history is enabled. */
+    ArrayList<String> history;
 
     public Update note(String value) {
+        if( history == null ) {
+            history = new ArrayList<String>(2);
+        }
         history.add(value);
         return this;
     }
 
+    boolean tracked() {
+        return history != null;
+    }
+
     public Update() {
     }
     
@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * An open addressing hash map keyed by primitive ints.  Used to track
+ * page updates without boxing the page ids or allocating hash entries.
+ * </p><p>
+ * Lookups can be done without locking while the map gets updated.  A
+ * slot's value is stored with a volatile write after its key, and a
+ * grown table is only published once it has been filled, so a lookup
+ * which sees a value also sees its key.  Removed entries are left in
+ * place as tombstones, so a lookup never misses an entry that was in
+ * the map before it started.  Updates are not thread safe, callers
+ * have to guard them with a mutex.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final public class IntHashMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_CAPACITY = 8;
+
+    private static final class Table {
+        final int[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    /** Number of live entries */
+    private int size;
+    /** Number of live entries plus tombstones */
+    private int used;
+
+    public IntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntHashMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        // keep the load factor under 2/3
+        while (capacity * 2 < size * 3) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            // read the value before the key, see put.
+            Object value = t.values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return value == TOMBSTONE ? null : (V) value;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            Object current = t.values.get(i);
+            if (current == null) {
+                break;
+            }
+            if (t.keys[i] == key) {
+                t.values.set(i, value);
+                if (current == TOMBSTONE) {
+                    size++;
+                    return null;
+                }
+                return (V) current;
+            }
+            i = (i + 1) & t.mask;
+        }
+
+        // Lookups treat a non null value as an occupied slot, the volatile
+        // write of the value publishes the key written before it.
+        t.keys[i] = key;
+        t.values.set(i, value);
+        size++;
+        used++;
+        if (used * 3 > t.keys.length * 2) {
+            rehash(capacityFor(size + 1));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            Object current = t.values.get(i);
+            if (current == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                if (current == TOMBSTONE) {
+                    return null;
+                }
+                t.values.set(i, TOMBSTONE);
+                size--;
+                return (V) current;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int j = 0; j < old.keys.length; j++) {
+            Object value = old.values.get(j);
+            if (value != null && value != TOMBSTONE) {
+                int key = old.keys[j];
+                int i = hash(key) & t.mask;
+                while (t.values.get(i) != null) {
+                    i = (i + 1) & t.mask;
+                }
+                t.keys[i] = key;
+                t.values.set(i, value);
+            }
+        }
+        used = size;
+        table = t;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * @return the keys in the map in ascending order.
+     */
+    public int[] sortedKeys() {
+        Table t = table;
+        int[] rc = new int[size];
+        int count = 0;
+        for (int j = 0; j < t.keys.length && count < rc.length; j++) {
+            Object value = t.values.get(j);
+            if (value != null && value != TOMBSTONE) {
+                rc[count++] = t.keys[j];
+            }
+        }
+        Arrays.sort(rc, 0, count);
+        return rc;
+    }
+
+    /**
+     * @return a cursor which can be used to iterate the entries
+     *         in the map without allocating an object per entry.
+     */
+    public Cursor<V> cursor() {
+        return new Cursor<V>(table);
+    }
+
+    /**
+     * Iterates the entries of a map.  The cursor iterates the entries
+     * that were in the map when the cursor was created, updating the
+     * map while iterating is only supported for keys that are already
+     * in the map.
+     */
+    static final public class Cursor<V> {
+        private final Table table;
+        private int index = -1;
+
+        private Cursor(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries.
+         */
+        public boolean next() {
+            while (++index < table.keys.length) {
+                Object value = table.values.get(index);
+                if (value != null && value != TOMBSTONE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int key() {
+            check();
+            return table.keys[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        public V value() {
+            check();
+            Object value = table.values.get(index);
+            return value == TOMBSTONE ? null : (V) value;
+        }
+
+        private void check() {
+            if (index < 0 || index >= table.keys.length) {
+                throw new NoSuchElementException();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(2 + (10 * size));
+        sb.append("{");
+        boolean first = true;
+        Cursor<V> c = cursor();
+        while (c.next()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(c.key()).append("=").append(c.value());
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+}
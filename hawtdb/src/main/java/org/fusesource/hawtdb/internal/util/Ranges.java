@@ -21,14 +21,18 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Map.Entry;
 
 import org.fusesource.hawtbuf.AbstractVarIntSupport;
-import org.fusesource.hawtdb.util.TreeMap;
-import org.fusesource.hawtdb.util.TreeMap.TreeEntry;
 
 /**
+ * <p>
  * Tracks numeric ranges.  Handy for keeping track of things like allocation or free lists.
+ * </p><p>
+ * The ranges are kept sorted in a pair of int arrays holding their starts and ends, which
+ * takes 8 bytes per range.  Lookups are binary searches, and adding or removing values
+ * shifts the ranges which follow them.  The {@link Range} objects handed out are copies,
+ * modifying them does not change the ranges.
+ * </p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -80,13 +84,14 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
         }
     }
 
-    private final TreeMap<Integer, Range> ranges = new TreeMap<Integer, Range>();
+    private int[] starts = new int[4];
+    private int[] ends = new int[4];
+    /** the number of ranges */
+    private int count;
 
     public Ranges copy() {
         Ranges rc = new Ranges();
-        for (Range r : this) {
-            rc.ranges.put(r.start, range(r.start, r.end));
-        }
+        rc.copy(this);
         return rc;
     }
 
@@ -95,43 +100,22 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
     
     public void add(int start, int length) {
+        if( length <= 0 ) {
+            return;
+        }
         int end = start+length;
-        
-        // look for entries starting from the end of the add range.
-        TreeEntry<Integer, Range> entry = ranges.floorEntry(end);
-        if( entry!=null ) {
-            while( entry!=null) {
-                Range range = entry.getValue();
-                TreeEntry<Integer, Range> curr = entry;
-                entry = entry.previous();
-                
-                // If tail of the range is not in the add range.
-                if( range.end < start ) {
-                    // we are done..
-                    break;
-                }
-                
-                // if the end of the range is not in the add range.
-                if( end < range.end  ) {
-                    // extend the length out..
-                    end = range.end;
-                }
 
-                if( start < range.start ) {
-                    // if the front of the range is in the add range.
-                    // just remove it..
-                    ranges.removeEntry(curr);
-                } else {
-                    // The front is not in the add range...
-                    // Then resize.. and we are done
-                    range.end = end;
-                    return;
-                }
-            }
+        // the ranges which overlap or touch the added range get merged with it.
+        int first = floorIndex(start);
+        if( first < 0 || ends[first] < start ) {
+            first++;
         }
-        
-        // put the new range in.
-        ranges.put(start, range(start, end));
+        int last = floorIndex(end);
+        if( first <= last ) {
+            start = Math.min(start, starts[first]);
+            end = Math.max(end, ends[last]);
+        }
+        replace(first, last, start, end);
     }    
     
     public void remove(int start) {
@@ -139,68 +123,222 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
     
     public void remove(int start, int length) {
+        if( length <= 0 ) {
+            return;
+        }
         int end = start+length;
-        
-        // look for entries starting from the end of the remove range.
-        TreeEntry<Integer, Range> entry = ranges.lowerEntry(end);
-        while( entry!=null) {
-            Range range = entry.getValue();
-            TreeEntry<Integer, Range> curr = entry;
-            entry = entry.previous();
-            
-            // If tail of the range is not in the remove range.
-            if( range.end <= start ) {
-                // we are done..
-                break;
+
+        // the ranges which overlap the removed range get trimmed or split.
+        int first = floorIndex(start);
+        if( first < 0 || ends[first] <= start ) {
+            first++;
+        }
+        int last = floorIndex(end-1);
+        if( first > last ) {
+            return;
+        }
+        int head = starts[first];
+        int tail = ends[last];
+        replace(first, last);
+        if( end < tail ) {
+            insert(first, end, tail);
+        }
+        if( head < start ) {
+            insert(first, head, start);
+        }
+    }
+
+    /**
+     * Adds all the values of the other ranges.
+     */
+    public void add(Ranges other) {
+        if( other.count == 0 ) {
+            return;
+        }
+        int[] s = new int[count + other.count];
+        int[] e = new int[count + other.count];
+        int n = 0;
+        int i = 0, j = 0;
+        while( i < count || j < other.count ) {
+            int start, end;
+            if( j == other.count || (i < count && starts[i] <= other.starts[j]) ) {
+                start = starts[i];
+                end = ends[i++];
+            } else {
+                start = other.starts[j];
+                end = other.ends[j++];
             }
-            
-            // if the end if the range is not in the remove range.
-            if( end < range.end  ) {
-                // Then we need to add back the tail part.
-                ranges.put(end, range(end, range.end));
+            if( n > 0 && start <= e[n-1] ) {
+                e[n-1] = Math.max(e[n-1], end);
+            } else {
+                s[n] = start;
+                e[n++] = end;
             }
+        }
+        starts = s;
+        ends = e;
+        count = n;
+    }
 
-            if( start <= range.start ) {
-                // if the front of the range is in the remove range.
-                // just remove it..
-                ranges.removeEntry(curr);
-                
-            } else {
-                // The front is not in the remove range...
-                // Then resize.. and we are done
-                range.end = start;
-                break;
+    /**
+     * Removes all the values of the other ranges.
+     */
+    public void remove(Ranges other) {
+        if( count == 0 || other.count == 0 ) {
+            return;
+        }
+        int[] s = new int[count + other.count];
+        int[] e = new int[count + other.count];
+        int n = 0;
+        int j = 0;
+        for( int i=0; i < count; i++ ) {
+            int start = starts[i];
+            int end = ends[i];
+            // skip the removed ranges which are before this range.
+            while( j < other.count && other.ends[j] <= start ) {
+                j++;
+            }
+            int k = j;
+            while( k < other.count && other.starts[k] < end ) {
+                if( start < other.starts[k] ) {
+                    s[n] = start;
+                    e[n++] = other.starts[k];
+                }
+                start = Math.max(start, other.ends[k]);
+                k++;
+            }
+            if( start < end ) {
+                s[n] = start;
+                e[n++] = end;
             }
         }
+        starts = s;
+        ends = e;
+        count = n;
     }
 
     public boolean contains(int value) {
-        TreeEntry<Integer, Range> entry = ranges.floorEntry(value);
-        if( entry == null ) {
-            return false;
+        int i = floorIndex(value);
+        return i >= 0 && value < ends[i];
+    }
+
+    /**
+     * @return the range with the greatest start which is less than or equal to the value,
+     *         or null if there is no such range.
+     */
+    public Range floor(int value) {
+        int i = floorIndex(value);
+        return i < 0 ? null : range(starts[i], ends[i]);
+    }
+
+    /**
+     * @return the range with the least start which is greater than or equal to the value,
+     *         or null if there is no such range.
+     */
+    public Range ceiling(int value) {
+        int i = floorIndex(value);
+        if( i < 0 || starts[i] < value ) {
+            i++;
         }
-        return entry.getValue().contains(value);
+        return i < count ? range(starts[i], ends[i]) : null;
+    }
+
+    /**
+     * Looks for a run of values which are all contained in one range, starting the search
+     * at the given value and giving up after looking at the given number of ranges.
+     *
+     * @return the first value of the run or -1 if none was found.
+     */
+    public int find(int value, int length, int maxRanges) {
+        int i = floorIndex(value);
+        if( i < 0 || ends[i] <= value ) {
+            i++;
+        }
+        for( int limit = Math.min(count, i + maxRanges); i < limit; i++ ) {
+            int start = Math.max(starts[i], value);
+            if( ends[i] - start >= length ) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the range with the greatest start which is less than or
+     *         equal to the value, or -1 if there is no such range.
+     */
+    private int floorIndex(int value) {
+        int low = 0;
+        int high = count - 1;
+        while( low <= high ) {
+            int mid = (low + high) >>> 1;
+            if( starts[mid] <= value ) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Replaces the ranges from the first to the last index with a single range.
+     */
+    private void replace(int first, int last, int start, int end) {
+        if( first <= last ) {
+            replace(first + 1, last);
+            starts[first] = start;
+            ends[first] = end;
+        } else {
+            insert(first, start, end);
+        }
+    }
+
+    /**
+     * Removes the ranges from the first to the last index.
+     */
+    private void replace(int first, int last) {
+        int removed = last - first + 1;
+        if( removed > 0 ) {
+            System.arraycopy(starts, last + 1, starts, first, count - last - 1);
+            System.arraycopy(ends, last + 1, ends, first, count - last - 1);
+            count -= removed;
+        }
+    }
+
+    private void insert(int index, int start, int end) {
+        if( count == starts.length ) {
+            int[] s = new int[count * 2];
+            int[] e = new int[count * 2];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            starts = s;
+            ends = e;
+        }
+        System.arraycopy(starts, index, starts, index + 1, count - index);
+        System.arraycopy(ends, index, ends, index + 1, count - index);
+        starts[index] = start;
+        ends[index] = end;
+        count++;
     }
 
-    
     public void clear() {
-        ranges.clear();
+        count = 0;
     }
 
     public void copy(Ranges source) {
-        ranges.clear();
-        for (Entry<Integer, Range> entry : source.ranges.entrySet()) {
-            Range value = entry.getValue();
-            ranges.put(entry.getKey(), range(value.start, value.end));
-        }
+        int capacity = Math.max(4, source.count);
+        starts = new int[capacity];
+        ends = new int[capacity];
+        System.arraycopy(source.starts, 0, starts, 0, source.count);
+        System.arraycopy(source.ends, 0, ends, 0, source.count);
+        count = source.count;
     }
     
     public int size() {
         int rc=0;
-        TreeEntry<Integer, Range> entry = ranges.firstEntry();
-        while(entry!=null) {
-            rc += entry.getValue().size();
-            entry = entry.next();
+        for( int i=0; i < count; i++ ) {
+            rc += ends[i] - starts[i];
         }
         return rc;
     }
@@ -211,12 +349,16 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
     
     public ArrayList<Range> toArrayList() {
-        return new ArrayList<Range>(ranges.values());
+        ArrayList<Range> rc = new ArrayList<Range>(count);
+        for( int i=0; i < count; i++ ) {
+            rc.add(range(starts[i], ends[i]));
+        }
+        return rc;
     }
     
     @Override
     public String toString() {
-        StringBuilder sb  = new StringBuilder(20+(10*ranges.size()));
+        StringBuilder sb  = new StringBuilder(20+(10*count));
         sb.append("[ ");
         
         boolean first=true;
@@ -233,14 +375,33 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
     
     public Iterator<Range> iterator() {
-        return ranges.values().iterator();
+        return new Iterator<Range>() {
+            int next;
+
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            public Range next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                Range rc = range(starts[next], ends[next]);
+                next++;
+                return rc;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public Iterator<Range> iteratorNotInRange(final Range mask) {
         
         return new Iterator<Range>() {
             
-            Iterator<Range> iter = ranges.values().iterator();
+            Iterator<Range> iter = Ranges.this.iterator();
             Range last = new Range(mask.start, mask.start);
             Range next = null;
 
@@ -352,7 +513,7 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
     }
 
     public boolean isEmpty() {
-        return ranges.isEmpty();
+        return count == 0;
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
@@ -363,8 +524,7 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
         readExternal((DataInput)in);
     }
     public void writeExternal(final DataOutput out) throws IOException {
-        ArrayList<Range> values = new ArrayList<Range>(ranges.values());
-        out.writeInt(values.size());
+        out.writeInt(count);
         AbstractVarIntSupport helper = new AbstractVarIntSupport() {
             @Override
             protected byte readByte() throws IOException {
@@ -381,18 +541,16 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
         // close to each other and we are just recording a var int
         // of the difference between the points.
         int base = 0;
-        for( Range range: values) {
-            helper.writeVarInt(range.start-base);
-            base = range.start;
-            helper.writeVarInt(range.end-base);
-            base = range.end;
+        for( int i=0; i < count; i++ ) {
+            helper.writeVarInt(starts[i]-base);
+            base = starts[i];
+            helper.writeVarInt(ends[i]-base);
+            base = ends[i];
         }
 
     }
 
     public void readExternal(final DataInput in) throws IOException {
-        ranges.clear();
-
         int size = in.readInt();
         AbstractVarIntSupport helper = new AbstractVarIntSupport() {
             @Override
@@ -406,13 +564,17 @@ final public class Ranges implements Externalizable, Iterable<Ranges.Range> {
             }
         };
 
+        // the ranges were written in order, so they can be appended.
+        starts = new int[Math.max(4, size)];
+        ends = new int[Math.max(4, size)];
+        count = 0;
         int base = 0;
         for(int i=0; i < size; i++) {
             base += helper.readVarInt();
-            int start = base;
+            starts[i] = base;
             base += helper.readVarInt();
-            int end = base;
-            ranges.put(start, range(start, end));
+            ends[i] = base;
+            count++;
         }
     }
 
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ChannelFileTest {
+
+    @Test
+    public void basicOps() throws IOException {
+        File file = new File("target/foo-channel.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, false);
+        byte expect[] = createData(100);
+        cf.write(4096, expect);
+
+        byte actual[] = new byte[100];
+        cf.read(4096, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // reading past the end of the file reads zeros.
+        cf.read(4096 * 10, actual);
+        Assert.assertArrayEquals(new byte[100], actual);
+        cf.close();
+    }
+
+    @Test
+    public void slices() throws IOException {
+        File file = new File("target/foo-channel.data");
+        file.delete();
+
+        ChannelFile cf = new ChannelFile(file, false);
+        byte expect[] = createData(100);
+        cf.write(0, expect);
+
+        ByteBuffer slice = cf.slice(true, 0, 100);
+        Assert.assertTrue(slice.isReadOnly());
+        byte actual[] = new byte[100];
+        slice.get(actual);
+        cf.unslice(slice);
+        Assert.assertArrayEquals(expect, actual);
+
+        // writable slices get written back on unslice.
+        slice = cf.slice(false, 200, 100);
+        slice.put(expect);
+        cf.read(200, actual);
+        Assert.assertArrayEquals(new byte[100], actual);
+        cf.unslice(slice);
+        cf.read(200, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // the pooled buffers get reused.
+        slice = cf.slice(true, 200, 100);
+        slice.get(actual);
+        cf.unslice(slice);
+        Assert.assertArrayEquals(expect, actual);
+        cf.close();
+    }
+
+    private byte[] createData(int size) {
+        byte[] rc = new byte[size];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = (byte) ('a' + (i % 26));
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FileJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File("target/test-data/" + getClass().getName() + ".journal");
+        file.delete();
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        FileJournal journal = new FileJournal(file);
+        journal.append(journal.position(), ByteBuffer.wrap("first".getBytes()), null);
+        journal.append(journal.position(), ByteBuffer.wrap("second".getBytes()), null);
+        journal.sync();
+        long end = journal.position();
+        journal.close();
+
+        journal = new FileJournal(file);
+        assertEquals(end, journal.position());
+        assertEquals("first", string(journal.read(0)));
+        long next = journal.next(0);
+        assertEquals("second", string(journal.read(next)));
+        assertEquals(end, journal.next(next));
+        assertNull(journal.read(end));
+        journal.close();
+    }
+
+    @Test
+    public void partialRecordIsNotRead() throws IOException {
+        FileJournal journal = new FileJournal(file);
+        journal.append(journal.position(), ByteBuffer.wrap("first".getBytes()), null);
+        long second = journal.position();
+        journal.append(second, ByteBuffer.wrap("second".getBytes()), null);
+        journal.close();
+
+        // corrupt the last byte of the second record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write('X');
+        raf.close();
+
+        journal = new FileJournal(file);
+        assertEquals("first", string(journal.read(0)));
+        assertNull(journal.read(second));
+
+        // and a record which was cut short.
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(second + 3);
+        raf.close();
+        assertNull(journal.read(second));
+        journal.close();
+    }
+
+    @Test
+    public void truncate() throws IOException {
+        final AtomicInteger completed = new AtomicInteger();
+        Runnable onComplete = new Runnable() {
+            public void run() {
+                completed.incrementAndGet();
+            }
+        };
+
+        FileJournal journal = new FileJournal(file);
+        journal.append(journal.position(), ByteBuffer.wrap("first".getBytes()), onComplete);
+        assertEquals(0, completed.get());
+        journal.sync();
+        assertEquals(1, completed.get());
+
+        journal.append(journal.position(), ByteBuffer.wrap("second".getBytes()), onComplete);
+        assertTrue(journal.position() > 0);
+        journal.truncate();
+        assertEquals(2, completed.get());
+        assertEquals(0, journal.position());
+        assertEquals(0, file.length());
+
+        journal.append(journal.position(), ByteBuffer.wrap("third".getBytes()), null);
+        assertEquals("third", string(journal.read(0)));
+        journal.close();
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new String(data);
+    }
+
+}
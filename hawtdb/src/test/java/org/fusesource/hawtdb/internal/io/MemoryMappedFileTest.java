@@ -18,6 +18,8 @@ package org.fusesource.hawtdb.internal.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 import org.junit.Assert;
 
@@ -61,6 +63,221 @@ public class MemoryMappedFileTest {
 
     }
 
+    @org.junit.Test
+    public void syncForcesDirtySegments() throws IOException {
+        File file = new File("target/foo.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false);
+        byte data[] = createData(100);
+        mmf.write(0, data);
+        mmf.write(SEGMENT_SIZE*3, data);
+        // spans segments 4 and 5.
+        mmf.write(SEGMENT_SIZE*5-50, data);
+        Assert.assertEquals(4, mmf.getDirtySegments());
+        Assert.assertEquals(300, mmf.getDirtyBytes());
+
+        mmf.sync();
+        Assert.assertEquals(0, mmf.getDirtySegments());
+        Assert.assertEquals(0, mmf.getDirtyBytes());
+
+        // Reading does not dirty anything.
+        mmf.read(0, new byte[100]);
+        mmf.unslice(mmf.slice(true, SEGMENT_SIZE, 100));
+        Assert.assertEquals(0, mmf.getDirtySegments());
+
+        // A writable slice stays dirty until it's unsliced.
+        ByteBuffer slice = mmf.slice(false, SEGMENT_SIZE, 100);
+        Assert.assertEquals(1, mmf.getDirtySegments());
+        mmf.sync();
+        slice.put(data);
+        Assert.assertEquals(1, mmf.getDirtySegments());
+        mmf.unslice(slice);
+        mmf.sync();
+        Assert.assertEquals(0, mmf.getDirtySegments());
+
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void concurrentSegmentMapping() throws Exception {
+        File file = new File("target/foo.data");
+        file.delete();
+
+        final int SEGMENT_SIZE = 1024*4;
+        final int THREADS = 8;
+        final int SEGMENTS = 200;
+        final MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+
+        // Every thread touches all the segments, each at its own offset, so they race to map them.
+        Thread threads[] = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int offset = i * 16;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        byte[] expect = createData(16);
+                        for (int segment = 0; segment < SEGMENTS; segment++) {
+                            mmf.write((long) segment * SEGMENT_SIZE + offset, expect);
+                            ByteBuffer slice = mmf.slice(true, (long) segment * SEGMENT_SIZE + offset, 16);
+                            byte actual[] = new byte[16];
+                            slice.get(actual);
+                            mmf.unslice(slice);
+                            Assert.assertArrayEquals(expect, actual);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(new ArrayList<Throwable>(), errors);
+        Assert.assertEquals(SEGMENTS, mmf.getDirtySegments());
+        Assert.assertEquals(SEGMENTS * THREADS * 16, mmf.getDirtyBytes());
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void preallocateSegments() throws Exception {
+        File file = new File("target/foo.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false, 2);
+        byte expect[] = createData(100);
+        mmf.write(SEGMENT_SIZE - 50, expect);
+
+        // Mapping segments 0 and 1 gets the segments through 3 allocated.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (file.length() < SEGMENT_SIZE * 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(SEGMENT_SIZE * 4, file.length());
+
+        byte actual[] = new byte[100];
+        mmf.read(SEGMENT_SIZE - 50, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.read(SEGMENT_SIZE * 3, actual);
+        Assert.assertArrayEquals(new byte[100], actual);
+        mmf.close();
+
+        // Reopening does not clobber the existing segments.  Mapping segment 3
+        // raised the preallocation target, so closing might have cut off a
+        // partly allocated segment.
+        long expected = (file.length() + SEGMENT_SIZE - 1) / SEGMENT_SIZE * SEGMENT_SIZE + SEGMENT_SIZE;
+        mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false, 1);
+        mmf.read(SEGMENT_SIZE - 50, actual);
+        Assert.assertArrayEquals(expect, actual);
+        deadline = System.currentTimeMillis() + 10000;
+        while (file.length() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, file.length());
+        mmf.read(SEGMENT_SIZE - 50, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void overlappingSegments() throws IOException {
+        File file = new File("target/foo.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false, 0, 1024);
+        byte expect[] = createData(3000);
+        // spans segments 0, 1 and 2 using the copying write.
+        mmf.write(SEGMENT_SIZE - 100, expect);
+
+        byte actual[] = new byte[3000];
+        mmf.read(SEGMENT_SIZE - 100, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // Slices which straddle the boundary within the overlap use the segment mapping.
+        ByteBuffer slice = mmf.slice(true, SEGMENT_SIZE - 100, 1000);
+        Assert.assertEquals(0, mmf.getBounderyBufferCount());
+        actual = new byte[1000];
+        slice.get(actual);
+        mmf.unslice(slice);
+        Assert.assertArrayEquals(copy(expect, 0, 1000), actual);
+
+        slice = mmf.slice(false, SEGMENT_SIZE*2 - 10, 20);
+        Assert.assertEquals(0, mmf.getBounderyBufferCount());
+        slice.put(copy(expect, 0, 20));
+        mmf.unslice(slice);
+        actual = new byte[20];
+        mmf.read(SEGMENT_SIZE*2 - 10, actual);
+        Assert.assertArrayEquals(copy(expect, 0, 20), actual);
+
+        // Past the overlap a temporary mapping is still needed.
+        slice = mmf.slice(true, SEGMENT_SIZE - 100, 2000);
+        Assert.assertEquals(1, mmf.getBounderyBufferCount());
+        mmf.unslice(slice);
+        Assert.assertEquals(0, mmf.getBounderyBufferCount());
+        mmf.close();
+    }
+
+    @org.junit.Test
+    public void truncate() throws IOException {
+        File file = new File("target/foo.data");
+        file.delete();
+
+        int SEGMENT_SIZE = 1024*64;
+        MemoryMappedFile mmf = new MemoryMappedFile(file, SEGMENT_SIZE, false, 0, 1024);
+        byte expect[] = createData(100);
+        mmf.write(SEGMENT_SIZE - 50, expect);
+        mmf.write(SEGMENT_SIZE * 4, expect);
+        Assert.assertEquals(SEGMENT_SIZE * 5 + 1024, file.length());
+
+        Assert.assertEquals(SEGMENT_SIZE + 100, mmf.truncate(SEGMENT_SIZE + 100));
+        Assert.assertEquals(SEGMENT_SIZE + 100, file.length());
+        byte actual[] = new byte[100];
+        mmf.read(SEGMENT_SIZE - 50, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // Slicing through the overlap does not reach past the end of the file.
+        ByteBuffer slice = mmf.slice(true, SEGMENT_SIZE - 50, 100);
+        slice.get(actual);
+        mmf.unslice(slice);
+        Assert.assertArrayEquals(expect, actual);
+        Assert.assertEquals(SEGMENT_SIZE + 100, file.length());
+
+        // The short mapping gets mapped in full again once bytes past it get used.
+        mmf.write(SEGMENT_SIZE + 200, expect);
+        Assert.assertEquals(SEGMENT_SIZE * 2 + 1024, file.length());
+        mmf.read(SEGMENT_SIZE - 50, actual);
+        Assert.assertArrayEquals(expect, actual);
+        mmf.read(SEGMENT_SIZE + 200, actual);
+        Assert.assertArrayEquals(expect, actual);
+
+        // So do the cut off segments.
+        mmf.read(SEGMENT_SIZE * 4, actual);
+        Assert.assertArrayEquals(new byte[100], actual);
+        Assert.assertEquals(SEGMENT_SIZE * 5 + 1024, file.length());
+
+        // Truncating within the overlap of a segment.
+        Assert.assertEquals(SEGMENT_SIZE + 10, mmf.truncate(SEGMENT_SIZE + 10));
+        Assert.assertEquals(SEGMENT_SIZE + 10, file.length());
+        mmf.read(SEGMENT_SIZE - 50, actual, 0, 60);
+        Assert.assertArrayEquals(copy(expect, 0, 60), copy(actual, 0, 60));
+        mmf.close();
+        Assert.assertEquals(SEGMENT_SIZE + 10, file.length());
+    }
+
+    private byte[] copy(byte[] data, int offset, int length) {
+        byte[] rc = new byte[length];
+        System.arraycopy(data, offset, rc, 0, length);
+        return rc;
+    }
+
     private byte[] createData(int size) {
 		byte[] rc = new byte[size];
 		for (int i = 0; i < rc.length; i++) {
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.fusesource.hawtdb.api.Allocator;
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+import org.fusesource.hawtdb.internal.util.Ranges.Range;
+import org.junit.Test;
+
+/**
+ * Compares the fragmentation and allocation latency of the {@link SimpleAllocator}
+ * and the {@link BestFitAllocator} when allocations of mixed sizes get allocated
+ * and freed at random.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AllocatorBenchmark {
+
+    static final int LIMIT = 1024 * 1024;
+    static final int LIVE_PAGES = LIMIT / 2;
+    static final int OPERATIONS = 200000;
+
+    @Test
+    public void firstFit() {
+        benchmark("first fit", new SimpleAllocator(LIMIT));
+    }
+
+    @Test
+    public void bestFit() {
+        benchmark("best fit", new BestFitAllocator(LIMIT));
+    }
+
+    private void benchmark(String name, Allocator allocator) {
+        Random random = new Random(42);
+        ArrayList<Range> allocated = new ArrayList<Range>();
+        int live = 0;
+        int failures = 0;
+        long allocTime = 0;
+        int allocs = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            if (live < LIVE_PAGES || allocated.isEmpty()) {
+                // mostly single pages with a tail of larger extents.
+                int size = random.nextInt(10) < 8 ? 1 : 1 + random.nextInt(64);
+                long start = System.nanoTime();
+                try {
+                    int page = allocator.alloc(size);
+                    allocTime += System.nanoTime() - start;
+                    allocs++;
+                    allocated.add(new Range(page, page + size));
+                    live += size;
+                } catch (OutOfSpaceException e) {
+                    failures++;
+                }
+            } else {
+                Range range = allocated.remove(random.nextInt(allocated.size()));
+                allocator.free(range.start, range.size());
+                live -= range.size();
+            }
+        }
+
+        int freeRanges = 0;
+        int largest = 0;
+        int highWater = 0;
+        for (Range range : allocator.getFreeRanges()) {
+            freeRanges++;
+            largest = Math.max(largest, range.size());
+        }
+        for (Range range : allocated) {
+            highWater = Math.max(highWater, range.end);
+        }
+        System.out.println(String.format("%s: %,d ns/alloc, free ranges: %,d, largest free range: %,d, high water page: %,d, failed allocs: %d",
+                name, allocTime / Math.max(1, allocs), freeRanges, largest, highWater, failures));
+    }
+
+}
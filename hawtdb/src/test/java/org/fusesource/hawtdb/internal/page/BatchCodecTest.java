@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.fusesource.hawtdb.internal.page.Update.update;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.fusesource.hawtdb.api.IOPagingException;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BatchCodecTest {
+
+    private Batch createBatch() {
+        Batch batch = new Batch(9);
+        batch.base = 10;
+        batch.head = 12;
+        batch.previous = 345;
+
+        IntHashMap<Update> updates = new IntHashMap<Update>();
+        updates.put(100, update().shadow(5000));
+        updates.put(7, update().allocated(true));
+        updates.put(70000, update().freed(true));
+        updates.put(101, update().allocated(true).shadow(4999));
+        batch.commits.addLast(new Commit(10, 11, updates));
+
+        updates = new IntHashMap<Update>();
+        updates.put(3, update().shadow(5001));
+        batch.commits.addLast(new Commit(12, updates));
+        return batch;
+    }
+
+    private void assertBatchEquals(Batch expected, Batch actual) {
+        assertEquals(expected.head, actual.head);
+        assertEquals(expected.base, actual.base);
+        assertEquals(expected.previous, actual.previous);
+        assertEquals(expected.commits.size(), actual.commits.size());
+
+        Iterator<Commit> i = actual.iterator();
+        for (Commit e : expected) {
+            Commit a = i.next();
+            assertEquals(e.getBaseRevision(), a.getBaseRevision());
+            assertEquals(e.getHeadRevision(), a.getHeadRevision());
+            assertTrue(Arrays.equals(e.updates.sortedKeys(), a.updates.sortedKeys()));
+            for (int page : e.updates.sortedKeys()) {
+                Update eu = e.updates.get(page);
+                Update au = a.updates.get(page);
+                assertEquals(eu.flags, au.flags);
+                assertEquals(eu.shadow, au.shadow);
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Batch batch = createBatch();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BatchCodec.store(batch, baos);
+
+        Batch loaded = BatchCodec.load(new ByteArrayInputStream(baos.toByteArray()));
+        assertBatchEquals(batch, loaded);
+    }
+
+    @Test
+    public void loadsSerializedBatches() throws Exception {
+        Batch batch = createBatch();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(batch);
+        oos.close();
+
+        Batch loaded = BatchCodec.load(new ByteArrayInputStream(baos.toByteArray()));
+        assertBatchEquals(batch, loaded);
+
+        // The compact format should be much smaller.
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        BatchCodec.store(batch, compact);
+        assertTrue(compact.size() * 4 < baos.size());
+    }
+
+    @Test
+    public void detectsCorruption() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BatchCodec.store(createBatch(), baos);
+        byte[] data = baos.toByteArray();
+        data[data.length - 2] ^= 0x55;
+        try {
+            BatchCodec.load(new ByteArrayInputStream(data));
+            fail("Expected the corruption to be detected");
+        } catch (IOPagingException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.fusesource.hawtdb.internal.util.Ranges.Range;
+import org.junit.Test;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BestFitAllocatorTest {
+
+    @Test
+    public void allocatesSmallestFreeRange() {
+        BestFitAllocator allocator = new BestFitAllocator(100);
+        assertEquals(0, allocator.alloc(100));
+
+        allocator.free(10, 8);
+        allocator.free(30, 3);
+        allocator.free(50, 5);
+        allocator.free(70, 3);
+
+        // the first fit would be page 10.
+        assertEquals(30, allocator.alloc(3));
+        assertEquals(70, allocator.alloc(2));
+        assertEquals(72, allocator.alloc(1));
+        assertEquals(50, allocator.alloc(4));
+        assertEquals(10, allocator.alloc(8));
+        assertEquals("[ 54 ]", allocator.getFreeRanges().toString());
+
+        allocator.alloc(1);
+        try {
+            allocator.alloc(1);
+            fail("Expected OutOfSpaceException");
+        } catch (OutOfSpaceException expected) {
+        }
+    }
+
+    @Test
+    public void freeMergesNeighbours() {
+        BestFitAllocator allocator = new BestFitAllocator(30);
+        assertEquals(0, allocator.alloc(30));
+        allocator.free(0, 10);
+        allocator.free(20, 10);
+        allocator.free(10, 10);
+        assertEquals("[ 0-29 ]", allocator.getFreeRanges().toString());
+        assertEquals(0, allocator.alloc(30));
+
+        allocator.setFreeRanges(ranges(range(5, 7), range(20, 30)));
+        assertTrue(allocator.isAllocated(4));
+        assertFalse(allocator.isAllocated(5));
+        assertEquals(5, allocator.alloc(2));
+        assertEquals(20, allocator.alloc(3));
+
+        allocator.unfree(25, 2);
+        assertEquals("[ 23-24, 27-29 ]", allocator.getFreeRanges().toString());
+        assertEquals(23, allocator.alloc(2));
+        assertEquals(27, allocator.alloc(3));
+    }
+
+    @Test
+    public void allocatesNearHint() {
+        BestFitAllocator allocator = new BestFitAllocator(100);
+        assertEquals(0, allocator.alloc(100));
+        allocator.free(10, 1);
+        allocator.free(40, 5);
+        allocator.free(60, 1);
+
+        assertEquals(40, allocator.alloc(1, 35));
+        assertEquals(41, allocator.alloc(2, 40));
+        assertEquals(60, allocator.alloc(1, 45));
+        // nothing free after the hint, so it's a best fit.
+        assertEquals(10, allocator.alloc(1, 70));
+        assertEquals(43, allocator.alloc(2, -1));
+        assertEquals("[  ]", allocator.getFreeRanges().toString());
+    }
+
+    @Test
+    public void randomAllocations() {
+        Random random = new Random(7);
+        BestFitAllocator allocator = new BestFitAllocator(10000);
+        ArrayList<Range> allocated = new ArrayList<Range>();
+        for (int i = 0; i < 20000; i++) {
+            if (allocated.isEmpty() || random.nextInt(3) != 0) {
+                int size = 1 + random.nextInt(20);
+                Range expected = bestFit(allocator.getFreeRanges(), size);
+                try {
+                    int page = allocator.alloc(size);
+                    assertEquals(expected.start, page);
+                    allocated.add(new Range(page, page + size));
+                } catch (OutOfSpaceException e) {
+                    assertEquals(null, expected);
+                }
+            } else {
+                Range range = allocated.remove(random.nextInt(allocated.size()));
+                allocator.free(range.start, range.size());
+            }
+        }
+    }
+
+    private static Range bestFit(Ranges free, int size) {
+        Range rc = null;
+        for (Range range : free) {
+            if (range.size() >= size && (rc == null || range.size() < rc.size())) {
+                rc = range;
+            }
+        }
+        return rc;
+    }
+
+    private static Range range(int start, int end) {
+        return new Range(start, end);
+    }
+
+    private static Ranges ranges(Range... args) {
+        Ranges rc = new Ranges();
+        for (Range range : args) {
+            rc.add(range.start, range.size());
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FreeListCodecTest {
+
+    private Ranges ranges(int... values) {
+        Ranges rc = new Ranges();
+        for (int i = 0; i < values.length; i += 2) {
+            rc.add(values[i], values[i + 1]);
+        }
+        return rc;
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        Ranges free = ranges(5, 10, 100, 1, 70000, 300);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FreeListCodec.storeCheckpoint(free, baos);
+
+        FreeListCodec.Record record = FreeListCodec.load(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(FreeListCodec.CHECKPOINT, record.type);
+        assertEquals(-1, record.previous);
+        assertEquals(free.toString(), record.freed.toString());
+    }
+
+    @Test
+    public void delta() throws Exception {
+        Ranges allocated = ranges(5, 2);
+        Ranges freed = ranges(20, 3, 400, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FreeListCodec.storeDelta(123, allocated, freed, baos);
+
+        FreeListCodec.Record record = FreeListCodec.load(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(FreeListCodec.DELTA, record.type);
+        assertEquals(123, record.previous);
+        assertEquals(allocated.toString(), record.allocated.toString());
+        assertEquals(freed.toString(), record.freed.toString());
+    }
+
+    @Test
+    public void loadsSerializedFreeList() throws Exception {
+        Ranges free = ranges(5, 10, 100, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(free);
+        oos.close();
+
+        FreeListCodec.Record record = FreeListCodec.load(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(FreeListCodec.CHECKPOINT, record.type);
+        assertEquals(free.toString(), record.freed.toString());
+    }
+
+}
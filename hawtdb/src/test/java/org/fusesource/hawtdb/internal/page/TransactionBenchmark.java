@@ -75,7 +75,38 @@ public class TransactionBenchmark {
         });
     }
 
+
+    @Test
+    public void aupdateWithHistory() throws Exception {
+        final int INITIAL_PAGE_COUNT = 1024 * 100;
+        benchmark.getHawtPageFileFactory().setTrackUpdateHistory(true);
+        preallocate(INITIAL_PAGE_COUNT);
+        benchmark.benchmark(1, new BenchmarkAction<RandomTxActor>("update with history") {
+            @Override
+            protected void execute(RandomTxActor actor) {
+                int page = actor.random.nextInt(INITIAL_PAGE_COUNT);
+                actor.tx().write(page, new Buffer(THE_DATA));
+                actor.tx().commit();
+            }
+        });
+    }
     
+    @Test
+    public void concurrentUpdate() throws Exception {
+        final int INITIAL_PAGE_COUNT = 1024 * 100;
+        preallocate(INITIAL_PAGE_COUNT);
+        for (int threads : new int[] { 1, 4, 16 }) {
+            benchmark.benchmark(threads, new BenchmarkAction<RandomTxActor>("update " + threads + " threads") {
+                @Override
+                protected void execute(RandomTxActor actor) {
+                    int page = actor.random.nextInt(INITIAL_PAGE_COUNT);
+                    actor.tx().write(page, new Buffer(THE_DATA));
+                    actor.tx().commit();
+                }
+            });
+        }
+    }
+
     @Test
     public void read() throws Exception {
         final int INITIAL_PAGE_COUNT = 1024 * 100;
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.fusesource.hawtdb.internal.util.IntHashMap;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class TranslationIndexTest {
+
+    private Commit commit(long revision) {
+        return new Commit(revision, new IntHashMap<Update>());
+    }
+
+    @Test
+    public void versions() {
+        TranslationIndex index = new TranslationIndex();
+        Commit c10 = commit(10);
+        Commit c20 = commit(20);
+        Commit c30 = commit(30);
+
+        index.add(5, c10);
+        index.add(5, c30);
+        // out of order adds get sorted in.
+        index.add(5, c20);
+        // adding the same commit again is ignored.
+        index.add(5, c30);
+
+        Commit[] versions = index.versions(5);
+        assertEquals(3, versions.length);
+        assertEquals(-1, TranslationIndex.search(versions, 9));
+        assertEquals(0, TranslationIndex.search(versions, 10));
+        assertEquals(1, TranslationIndex.search(versions, 29));
+        assertEquals(2, TranslationIndex.search(versions, 100));
+
+        index.remove(5, c10);
+        index.remove(5, c20);
+        versions = index.versions(5);
+        assertEquals(1, versions.length);
+        assertEquals(c30, versions[0]);
+
+        index.remove(5, c30);
+        assertNull(index.versions(5));
+    }
+
+    @Test
+    public void concurrentLookups() throws Exception {
+        final TranslationIndex index = new TranslationIndex();
+        final AtomicBoolean done = new AtomicBoolean();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+
+        // Lookups must always see complete version arrays in revision order.
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (int page = 0; page < 64; page++) {
+                            Commit[] versions = index.versions(page);
+                            if (versions == null) {
+                                continue;
+                            }
+                            for (int i = 1; i < versions.length; i++) {
+                                if (versions[i - 1].getBaseRevision() >= versions[i].getBaseRevision()) {
+                                    throw new AssertionError("versions out of order");
+                                }
+                            }
+                            TranslationIndex.search(versions, Long.MAX_VALUE);
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        reader.start();
+        Commit[] commits = new Commit[8];
+        for (int revision = 0; revision < 20000; revision++) {
+            Commit commit = commit(revision);
+            Commit oldest = commits[revision % commits.length];
+            commits[revision % commits.length] = commit;
+            for (int page = revision % 7; page < 64; page += 7) {
+                index.add(page, commit);
+                if (oldest != null) {
+                    index.remove(page, oldest);
+                }
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(new ArrayList<Throwable>(), errors);
+    }
+
+}
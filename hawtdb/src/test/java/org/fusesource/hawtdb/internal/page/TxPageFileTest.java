@@ -17,6 +17,8 @@
 package org.fusesource.hawtdb.internal.page;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
@@ -25,14 +27,22 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.PagedAccessor;
 import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.fusesource.hawtdb.internal.io.FileJournal;
+import org.fusesource.hawtdb.internal.util.IntHashMap;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -101,7 +111,7 @@ public class TxPageFileTest {
         }
     }
 
-    private final class StringPagedAccessor implements PagedAccessor<String> {
+    private class StringPagedAccessor implements PagedAccessor<String> {
         public String load(Paged paged, int page) {
             return TxPageFileTest.this.load(paged, page);
         }
@@ -194,6 +204,50 @@ public class TxPageFileTest {
 
     }
 
+    @Test
+    public void lockedConflictCheckResumesAtRevision() throws IOException {
+        Transaction tx = pf.tx();
+        assertEquals(0, store(tx, "Hello"));
+        assertEquals(1, store(tx, "World"));
+        tx.commit();
+
+        HawtTxPageFile hawtPageFile = (HawtTxPageFile) pf;
+        Snapshot snapshot = hawtPageFile.openSnapshot();
+        IntHashMap<Update> pageUpdates = new IntHashMap<Update>();
+        pageUpdates.put(0, Update.update());
+
+        tx = pf.tx();
+        store(tx, 1, "Change 1");
+        tx.commit();
+        long checked = hawtPageFile.openBatch.head;
+        snapshot.getTracker().commitCheck(pageUpdates, hawtPageFile.openBatch, checked);
+
+        // This update gets merged into the commit of page 1, which the first pass already looked at.
+        tx = pf.tx();
+        store(tx, 0, "Change 0");
+        tx.commit();
+        try {
+            snapshot.getTracker().commitCheck(pageUpdates, hawtPageFile.openBatch, checked);
+            fail("expected OptimisticUpdateException");
+        } catch (OptimisticUpdateException expected) {
+        }
+
+        // Also when the write set is bigger than the newer commits.
+        IntHashMap<Update> bigUpdates = new IntHashMap<Update>();
+        for (int i = 100; i >= 0; i--) {
+            bigUpdates.put(i, Update.update());
+        }
+        try {
+            snapshot.getTracker().commitCheck(bigUpdates, hawtPageFile.openBatch, checked);
+            fail("expected OptimisticUpdateException");
+        } catch (OptimisticUpdateException expected) {
+        }
+
+        // The commits up to the revision are left to the first pass.
+        snapshot.getTracker().commitCheck(pageUpdates, hawtPageFile.openBatch, hawtPageFile.openBatch.head);
+        snapshot.close();
+    }
+
     Paged getRawPageFile() {
         return ((HawtTxPageFile)pf).pageFile;
     }
@@ -373,4 +427,837 @@ public class TxPageFileTest {
         }
 
     }
+
+    @Test
+    public void smallAdaptiveBatches() throws IOException {
+        pff.close();
+        pff.setBatchSize(4);
+        pff.setMinBatchSize(2);
+        pff.setMaxBatchSize(8);
+        pff.setAdaptiveBatchSize(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        // Each commit fills up the batch, so the updates get stored across many batches.
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            Transaction tx = pf.tx();
+            for (int j = 0; j < 3; j++) {
+                pages.add(store(tx, "page:" + pages.size()));
+            }
+            tx.commit();
+            int batchSize = ((HawtTxPageFile) pf).batchSize;
+            assertTrue(batchSize >= 2 && batchSize <= 8);
+        }
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals("page:" + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void adaptBatchSize() throws IOException {
+        pff.close();
+        pff.setBatchSize(4);
+        pff.setMinBatchSize(2);
+        pff.setMaxBatchSize(64);
+        pff.setAdaptiveBatchSize(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+        HawtTxPageFile hawtPageFile = (HawtTxPageFile) pf;
+        long MILLIS = 1000 * 1000;
+
+        // 100 pages get committed during a 10ms sync, so batches grow towards 200 pages.
+        hawtPageFile.adaptBatchSize(10 * MILLIS, 100, 10 * MILLIS);
+        assertEquals(53, hawtPageFile.batchSize);
+        hawtPageFile.adaptBatchSize(10 * MILLIS, 100, 10 * MILLIS);
+        assertEquals(64, hawtPageFile.batchSize);
+
+        // Without updates the batch size is kept.
+        hawtPageFile.adaptBatchSize(10 * MILLIS, 0, 10 * MILLIS);
+        assertEquals(64, hawtPageFile.batchSize);
+
+        // A light load shrinks the batches down to the minimum.
+        int previous = hawtPageFile.batchSize;
+        for (int i = 0; i < 20; i++) {
+            hawtPageFile.adaptBatchSize(MILLIS, 1, 1000 * MILLIS);
+            assertTrue(hawtPageFile.batchSize <= previous);
+            assertTrue(hawtPageFile.batchSize >= 2);
+            previous = hawtPageFile.batchSize;
+        }
+        assertEquals(2, hawtPageFile.batchSize);
+    }
+
+    @Test
+    public void pipelinedBatches() throws Exception {
+        pff.close();
+        pff.setBatchSize(4);
+        pff.setUseWorkerThread(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        // The commits keep closing batches while the stages store and sync the earlier ones.
+        final CountDownLatch flushed = new CountDownLatch(200);
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 200; i++) {
+            Transaction tx = pf.tx();
+            pages.add(store(tx, "page:" + i));
+            tx.onFlush(new Runnable() {
+                public void run() {
+                    flushed.countDown();
+                }
+            });
+            tx.commit();
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals("page:" + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void committersDoNotStoreBatches() throws Exception {
+        pff.close();
+        pff.setBatchSize(4);
+        pff.setUseWorkerThread(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        // The deferred updates get encoded by whichever thread stores their batch.
+        final Set<Thread> storers = Collections.synchronizedSet(new HashSet<Thread>());
+        PagedAccessor<String> accessor = new StringPagedAccessor() {
+            public List<Integer> store(Paged paged, int page, String value) {
+                storers.add(Thread.currentThread());
+                return super.store(paged, page, value);
+            }
+        };
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 200; i++) {
+            Transaction tx = pf.tx();
+            int page = tx.allocator().alloc(1);
+            tx.put(accessor, page, "page:" + i);
+            pages.add(page);
+            tx.commit();
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(storers.contains(Thread.currentThread()));
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals("page:" + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void pipelinedFlushOfSyncedBatches() throws Exception {
+        pff.close();
+        pff.setBatchSize(1000);
+        pff.setUseWorkerThread(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx = pf.tx();
+        int page = store(tx, "page:0");
+        tx.commit();
+        pf.flush();
+
+        // Nothing is left to sync, so the flush completes even though
+        // the next commit only partly fills the open batch.
+        final CountDownLatch done = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        tx = pf.tx();
+        store(tx, "page:1");
+        tx.commit();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // A flush of a partly filled open batch completes once it's synced.
+        final CountDownLatch stored = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                stored.countDown();
+            }
+        });
+        tx = pf.tx();
+        store(tx, page, "page:2");
+        tx.commit();
+        assertTrue(stored.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void parallelEncoding() throws IOException {
+        pff.close();
+        pff.setBatchSize(64);
+        pff.setEncoderThreads(4);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        // Large values get stored in extents which link additional pages.
+        AbstractStreamPagedAccessor<String> ENCODER = new AbstractStreamPagedAccessor<String>() {
+            protected void encode(Paged paged, DataOutputStream os, String data) throws IOException {
+                os.writeUTF(data);
+            }
+            protected String decode(Paged paged, DataInputStream is) throws IOException {
+                return is.readUTF();
+            }
+        };
+
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            Transaction tx = pf.tx();
+            for (int j = 0; j < 10; j++) {
+                int page = tx.allocator().alloc(1);
+                tx.put(ENCODER, page, value(pages.size(), -1));
+                pages.add(page);
+            }
+            tx.commit();
+
+            // updates pages which an earlier commit of the same batch has not stored yet.  The
+            // open snapshot keeps the update from getting merged into the previous commit.
+            Transaction reader = pf.tx();
+            assertEquals(value(pages.size() - 1, -1), reader.get(ENCODER, pages.get(pages.size() - 1)));
+            tx = pf.tx();
+            for (int j = pages.size() - 10; j < pages.size(); j++) {
+                tx.put(ENCODER, pages.get(j), value(j, 0));
+            }
+            tx.commit();
+            reader.commit();
+        }
+
+        // Update the pages a few times so the same pages get stored by many commits of a batch.
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < pages.size(); i += 5) {
+                Transaction tx = pf.tx();
+                for (int j = i; j < i + 5; j++) {
+                    tx.put(ENCODER, pages.get(j), value(j, round));
+                }
+                tx.commit();
+            }
+        }
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(value(i, 3), tx.get(ENCODER, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    private String value(int page, int round) {
+        StringBuilder sb = new StringBuilder("page:" + page + " round:" + round);
+        // every third value spans several pages.
+        int length = page % 3 == 0 ? pff.getPageSize() * (2 + round) : 10;
+        while (sb.length() < length) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void freeListRecovery() throws IOException {
+        // Every flush stores a free list delta, enough of them for the chain to get compacted.
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 90; i++) {
+            Transaction tx = pf.tx();
+            pages.add(store(tx, "page:" + i));
+            if (i % 3 == 0) {
+                tx.free(pages.remove(0));
+            }
+            tx.commit();
+            pf.flush();
+        }
+        pff.close();
+        String expected = ((HawtTxPageFile) pf).allocator.getFreeRanges().toString();
+
+        pff.open();
+        pf = pff.getTxPageFile();
+        assertEquals(expected, ((HawtTxPageFile) pf).allocator.getFreeRanges().toString());
+    }
+
+    @Test
+    public void bestFitAllocation() throws IOException {
+        pff.close();
+        pff = createConcurrentPageFileFactory();
+        pff.setAllocationPolicy(Allocator.Policy.BEST_FIT);
+        pff.setAllocationChunkSize(0);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(10);
+        tx.allocator().alloc(1);
+        int second = tx.allocator().alloc(3);
+        tx.allocator().alloc(1);
+        tx.commit();
+        pf.flush();
+
+        tx = pf.tx();
+        tx.allocator().free(first, 10);
+        tx.allocator().free(second, 3);
+        tx.commit();
+        pf.flush();
+
+        // The 3 freed pages are a better fit than the 10 freed pages in front of them.
+        tx = pf.tx();
+        assertEquals(second, tx.allocator().alloc(2));
+        int page = store(tx, "Hello");
+        tx.commit();
+
+        reload();
+        tx = pf.tx();
+        assertEquals("Hello", load(tx, page));
+        tx.commit();
+    }
+
+    @Test
+    public void allocationChunks() throws IOException {
+        Allocator allocator = ((HawtTxPageFile) pf).allocator;
+
+        // The pages of a transaction get carved out of one reserved chunk.
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(1);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(first + i, tx.allocator().alloc(1));
+        }
+        assertTrue(allocator.isAllocated(first + 15));
+        assertTrue(!allocator.isAllocated(first + 16));
+        tx.commit();
+
+        // the unused pages of the chunk get freed on commit.
+        assertTrue(allocator.isAllocated(first + 4));
+        assertTrue(!allocator.isAllocated(first + 5));
+
+        tx = pf.tx();
+        int page = tx.allocator().alloc(1);
+        assertEquals(first + 5, page);
+        tx.rollback();
+        assertTrue(!allocator.isAllocated(page));
+        assertTrue(!allocator.isAllocated(page + 1));
+
+        // larger allocations go straight to the allocator.
+        tx = pf.tx();
+        assertEquals(first + 5, tx.allocator().alloc(9));
+        assertEquals(first + 14, tx.allocator().alloc(1));
+        assertTrue(allocator.isAllocated(first + 29));
+        tx.rollback();
+        assertEquals("[ " + (first + 5) + "-" + (allocator.getLimit() - 1) + " ]", allocator.getFreeRanges().toString());
+    }
+
+    @Test
+    public void performContiguousUpdates() throws IOException {
+        Transaction tx = pf.tx();
+        int first = tx.allocator().alloc(100);
+        for (int i = 0; i < 100; i++) {
+            store(tx, first + i, "original:" + i);
+        }
+        tx.commit();
+        pf.flush();
+
+        // The shadow pages get allocated in a row so they are performed as a few runs.
+        HawtTxPageFile hawtPageFile = (HawtTxPageFile) pf;
+        int runs = hawtPageFile.performedRuns.get();
+        int copied = hawtPageFile.performedPages.get();
+        tx = pf.tx();
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 5) {
+                store(tx, first + i, "updated:" + i);
+            }
+        }
+        tx.commit();
+        pf.flush();
+
+        reload();
+        // Every skipped page splits off a run, and so may the allocation chunk
+        // boundaries of the shadow pages.  Copying page by page would take 90.
+        assertEquals(90, hawtPageFile.performedPages.get() - copied);
+        runs = hawtPageFile.performedRuns.get() - runs;
+        assertTrue("performed runs: " + runs, runs >= 10 && runs <= 15);
+        tx = pf.tx();
+        for (int i = 0; i < 100; i++) {
+            assertEquals((i % 10 != 5 ? "updated:" : "original:") + i, load(tx, first + i));
+        }
+        tx.commit();
+    }
+
+    private TxPageFileFactory createJournaledPageFileFactory() {
+        TxPageFileFactory rc = createConcurrentPageFileFactory();
+        rc.setJournalFile(new File("target/test-data/" + getClass().getName() + ".journal"));
+        return rc;
+    }
+
+    @Test
+    public void journalRecovery() throws IOException {
+        pff.close();
+        pff = createJournaledPageFileFactory();
+        pff.getFile().delete();
+        pff.getJournalFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            Transaction tx = pf.tx();
+            int page = store(tx, "original:" + i);
+            pages.add(page);
+            tx.commit();
+            pf.flush();
+        }
+        Transaction tx = pf.tx();
+        for (int page : pages) {
+            store(tx, page, "updated:" + page);
+        }
+        tx.commit();
+        pf.flush();
+        assertTrue(pff.getJournalFile().length() > 0);
+
+        // Simulate a failure which lost the unsynced writes to the original pages.
+        RandomAccessFile raf = new RandomAccessFile(pff.getFile(), "rw");
+        try {
+            byte[] zeros = new byte[pff.getPageSize()];
+            for (int page : pages) {
+                raf.seek(HawtTxPageFile.FILE_HEADER_SIZE + (long) page * pff.getPageSize());
+                raf.write(zeros);
+            }
+        } finally {
+            raf.close();
+        }
+
+        // The journal replay restores them.
+        TxPageFileFactory recovered = createJournaledPageFileFactory();
+        recovered.open();
+        try {
+            assertEquals(0, recovered.getJournalFile().length());
+            tx = recovered.getTxPageFile().tx();
+            for (int page : pages) {
+                assertEquals("updated:" + page, load(tx, page));
+            }
+            tx.commit();
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void journalCheckpoint() throws IOException {
+        pff.close();
+        pff = createJournaledPageFileFactory();
+        pff.setJournalCheckpointSize(1);
+        pff.getFile().delete();
+        pff.getJournalFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            Transaction tx = pf.tx();
+            pages.add(store(tx, "page:" + i));
+            tx.commit();
+            pf.flush();
+            // every flush goes past the checkpoint size.
+            assertEquals(0, pff.getJournalFile().length());
+        }
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals("page:" + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void journalCheckpointAfterSnapshotsClose() throws Exception {
+        pff.close();
+        pff = createJournaledPageFileFactory();
+        pff.setJournalCheckpointSize(1);
+        pff.setBatchSize(4);
+        pff.setUseWorkerThread(true);
+        pff.getFile().delete();
+        pff.getJournalFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        // The snapshot keeps the batches committed after it from being performed.
+        Snapshot snapshot = ((HawtTxPageFile) pf).openSnapshot();
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            Transaction tx = pf.tx();
+            pages.add(store(tx, "page:" + i));
+            tx.commit();
+        }
+        final CountDownLatch flushed = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                flushed.countDown();
+            }
+        });
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        assertTrue(pff.getJournalFile().length() > 0);
+
+        // The postponed checkpoint happens once it closes.
+        snapshot.close();
+        long timeout = System.currentTimeMillis() + 10000;
+        while (pff.getJournalFile().length() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pff.getJournalFile().length());
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals("page:" + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void fileChannelStorage() throws IOException {
+        pff.close();
+        pff = createConcurrentPageFileFactory();
+        pff.setUseMemoryMapping(false);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            Transaction tx = pf.tx();
+            pages.add(store(tx, "page:" + i));
+            tx.commit();
+        }
+        Transaction tx = pf.tx();
+        for (int i = 0; i < 10; i += 2) {
+            store(tx, pages.get(i), "updated:" + i);
+        }
+        tx.commit();
+
+        reload();
+        tx = pf.tx();
+        for (int i = 0; i < 10; i++) {
+            assertEquals((i % 2 == 0 ? "updated:" : "page:") + i, load(tx, pages.get(i)));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        pff.close();
+        pff.setFlushDelay(10);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        final int THREADS = 10;
+        final int COMMITS = 20;
+        final CountDownLatch flushed = new CountDownLatch(THREADS * COMMITS);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int j = 0; j < COMMITS; j++) {
+                        Transaction tx = pf.tx();
+                        store(tx, tx.allocator().alloc(1), "value:" + j);
+                        tx.onFlush(new Runnable() {
+                            public void run() {
+                                flushed.countDown();
+                            }
+                        });
+                        tx.commit();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+
+        // A flush request with nothing to flush completes too.
+        final CountDownLatch done = new CountDownLatch(1);
+        pf.flush(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void groupCommitWhileSyncing() throws Exception {
+        pff.close();
+
+        // The journal sync blocks until the test lets it go.
+        final CountDownLatch syncing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        File journalFile = new File("target/test-data/" + getClass().getName() + ".journal");
+        journalFile.delete();
+        final FileJournal fileJournal = new FileJournal(journalFile);
+        Journal journal = new Journal() {
+            public void append(long position, ByteBuffer buffer, Runnable onComplete) {
+                fileJournal.append(position, buffer, onComplete);
+            }
+            public long position() {
+                return fileJournal.position();
+            }
+            public void sync() {
+                syncing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                fileJournal.sync();
+            }
+            public ByteBuffer read(long position) {
+                return fileJournal.read(position);
+            }
+            public long next(long position) {
+                return fileJournal.next(position);
+            }
+            public void truncate() {
+                fileJournal.truncate();
+            }
+            public void close() {
+                fileJournal.close();
+            }
+        };
+
+        TxPageFileFactory factory = createConcurrentPageFileFactory();
+        factory.setFlushDelay(10);
+        PageFileFactory pageFileFactory = new PageFileFactory();
+        pageFileFactory.setFile(factory.getFile());
+        pageFileFactory.setHeaderSize(HawtTxPageFile.FILE_HEADER_SIZE);
+        pageFileFactory.setStoreFreePages(false);
+        pageFileFactory.getFile().delete();
+        pageFileFactory.open();
+        HawtTxPageFile hawtPageFile = new HawtTxPageFile(factory, (HawtPageFile) pageFileFactory.getPageFile(), journal);
+        hawtPageFile.reset();
+        try {
+            // The delayed flush starts syncing while the open batch is still empty.
+            final CountDownLatch flushed = new CountDownLatch(1);
+            hawtPageFile.flush(new Runnable() {
+                public void run() {
+                    flushed.countDown();
+                }
+            });
+            assertTrue(syncing.await(10, TimeUnit.SECONDS));
+
+            // A commit without flush callbacks lands in the open batch meanwhile.
+            Transaction tx = hawtPageFile.tx();
+            store(tx, tx.allocator().alloc(1), "Hello");
+            tx.commit();
+            release.countDown();
+
+            assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            hawtPageFile.close();
+            journal.close();
+            pageFileFactory.close();
+        }
+    }
+    @Test
+    public void commitAsync() throws Exception {
+        Transaction tx = pf.tx();
+        int page = store(tx, "async");
+        CommitFuture future = tx.commitAsync();
+
+        final CountDownLatch listened = new CountDownLatch(1);
+        future.addListener(new Runnable() {
+            public void run() {
+                listened.countDown();
+            }
+        });
+
+        // The commit's batch gets synced by the flush.
+        pf.flush();
+        assertTrue(future.isDone());
+        assertTrue(listened.await(0, TimeUnit.SECONDS));
+        future.get(0, TimeUnit.SECONDS);
+
+        tx = pf.tx();
+        assertEquals("async", load(tx, page));
+        assertTrue(tx.commitAsync().isDone());
+    }
+
+    @Test
+    public void snapshotSpansManyBatches() throws IOException {
+        pff.close();
+        pff.setBatchSize(2);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx = pf.tx();
+        int page = store(tx, "original");
+        tx.commit();
+        pf.flush();
+
+        // The reader's snapshot should stay consistent while many batches get
+        // stored, synced and performed.
+        Transaction reader = pf.tx();
+        assertEquals("original", load(reader, page));
+        for (int i = 0; i < 50; i++) {
+            tx = pf.tx();
+            store(tx, page, "update:" + i);
+            store(tx, "filler:" + i);
+            tx.commit();
+            pf.flush();
+            assertEquals("original", load(reader, page));
+        }
+        reader.commit();
+
+        pf.flush();
+        tx = pf.tx();
+        assertEquals("update:49", load(tx, page));
+        tx.commit();
+    }
+
+    @Test
+    public void conflictingUpdateInLaterBatchFails() throws IOException {
+        pff.close();
+        pff.setBatchSize(2);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        Transaction tx1 = pf.tx();
+        int page = store(tx1, "Hello");
+        tx1.commit();
+
+        tx1 = pf.tx();
+        store(tx1, page, "Change 1");
+
+        // The conflicting change gets stored in a later batch followed by more batches.
+        Transaction tx2 = pf.tx();
+        store(tx2, page, "Change 2");
+        tx2.commit();
+        for (int i = 0; i < 10; i++) {
+            tx2 = pf.tx();
+            store(tx2, "filler:" + i);
+            tx2.commit();
+        }
+        pf.flush();
+
+        try {
+            tx1.commit();
+            fail("expected OptimisticUpdateException");
+        } catch (OptimisticUpdateException expected) {
+        }
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        compaction(false);
+    }
+
+    @Test
+    public void compactionOfMemoryMappedFile() throws IOException {
+        compaction(true);
+    }
+
+    private void compaction(boolean useMemoryMapping) throws IOException {
+        pff.close();
+        pff = createConcurrentPageFileFactory();
+        pff.setUseMemoryMapping(useMemoryMapping);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        BTreeIndexFactory<String, String> btreeFactory = new BTreeIndexFactory<String, String>();
+        btreeFactory.setKeyCodec(StringCodec.INSTANCE);
+        btreeFactory.setValueCodec(StringCodec.INSTANCE);
+        btreeFactory.setDeferredEncoding(false);
+        HashIndexFactory<String, String> hashFactory = new HashIndexFactory<String, String>();
+        hashFactory.setKeyCodec(StringCodec.INSTANCE);
+        hashFactory.setValueCodec(StringCodec.INSTANCE);
+        hashFactory.setFixedCapacity(16);
+
+        Transaction tx = pf.tx();
+        int btreeLocation = btreeFactory.create(tx).getIndexLocation();
+        int hashLocation = hashFactory.create(tx).getIndexLocation();
+        tx.commit();
+
+        int COUNT = 10000;
+        for (int i = 0; i < COUNT; i += 500) {
+            tx = pf.tx();
+            Index<String, String> btree = btreeFactory.open(tx, btreeLocation);
+            Index<String, String> hash = hashFactory.open(tx, hashLocation);
+            for (int j = i; j < i + 500; j++) {
+                btree.put("key:" + j, "value:" + j);
+                hash.put("key:" + j, "value:" + j);
+            }
+            tx.commit();
+        }
+
+        // Only the first and the last entries are kept, the pages which hold
+        // the last ones are near the end of the file.
+        tx = pf.tx();
+        Index<String, String> btree = btreeFactory.open(tx, btreeLocation);
+        Index<String, String> hash = hashFactory.open(tx, hashLocation);
+        for (int i = 100; i < COUNT - 100; i++) {
+            btree.remove("key:" + i);
+            hash.remove("key:" + i);
+        }
+        tx.commit();
+        pf.flush();
+        long peak = pff.getFile().length();
+
+        Compactor compactor = new Compactor(pf);
+        compactor.addIndex(btreeFactory, btreeLocation);
+        compactor.addIndex(hashFactory, hashLocation);
+        compactor.setPagesPerTransaction(8);
+        int pages = compactor.compact();
+        assertTrue(pages > 0);
+        assertEquals(HawtTxPageFile.FILE_HEADER_SIZE + (long) pages * pff.getPageSize(), pff.getFile().length());
+        assertTrue(pff.getFile().length() < peak / 8);
+
+        reload();
+        tx = pf.tx();
+        btree = btreeFactory.open(tx, btreeLocation);
+        hash = hashFactory.open(tx, hashLocation);
+        assertEquals(200, btree.size());
+        assertEquals(200, hash.size());
+        for (int i = 0; i < COUNT; i++) {
+            String expected = i < 100 || i >= COUNT - 100 ? "value:" + i : null;
+            assertEquals(expected, btree.get("key:" + i));
+            assertEquals(expected, hash.get("key:" + i));
+        }
+
+        // the file grows again once it's used.
+        for (int i = 100; i < 1100; i++) {
+            btree.put("key:" + i, "value:" + i);
+        }
+        tx.commit();
+        reload();
+        tx = pf.tx();
+        assertEquals(1200, btreeFactory.open(tx, btreeLocation).size());
+        tx.commit();
+    }
 }
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class IntHashMapTest {
+
+    @Test
+    public void test() {
+        IntHashMap<String> map = new IntHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(5, "five"));
+        assertEquals("zero", map.get(0));
+        assertEquals("five", map.put(5, "FIVE"));
+        assertEquals(2, map.size());
+
+        // removed entries can be put back
+        assertEquals("zero", map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertNull(map.remove(0));
+        assertNull(map.put(0, "zero"));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(1234);
+        IntHashMap<Integer> map = new IntHashMap<Integer>();
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        for (int key : map.sortedKeys()) {
+            assertTrue(key > last);
+            last = key;
+            assertEquals(expected.get(key), map.get(key));
+            count++;
+        }
+        assertEquals(expected.size(), count);
+
+        count = 0;
+        IntHashMap.Cursor<Integer> cursor = map.cursor();
+        while (cursor.next()) {
+            assertEquals(expected.get(cursor.key()), cursor.value());
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    public void concurrentLookups() throws Exception {
+        final IntHashMap<Integer> map = new IntHashMap<Integer>();
+        final int COUNT = 200000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+
+        // Readers must only ever see a key's own value, even while the table grows.
+        Thread readers[] = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            final Random random = new Random(i);
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            int key = random.nextInt(COUNT);
+                            Integer value = map.get(key);
+                            if (value != null && value.intValue() != -key) {
+                                throw new AssertionError("key " + key + " mapped to " + value);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int key = 0; key < COUNT; key++) {
+            map.put(key, -key);
+            if (key % 3 == 0) {
+                map.remove(key / 2);
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+    }
+
+}
@@ -18,8 +18,14 @@ package org.fusesource.hawtdb.internal.util;
 
 import static org.fusesource.hawtdb.internal.util.Ranges.range;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
+import java.util.Random;
 
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.internal.util.Ranges.Range;
@@ -63,6 +69,100 @@ public class RangesTest {
         assertEquals(ranges(range(0,20)), ranges.toArrayList());
     }
     
+    @Test
+    public void find() {
+        Ranges ranges = new Ranges();
+        ranges.add(0, 2);
+        ranges.add(10, 3);
+        ranges.add(20, 10);
+
+        assertEquals(11, ranges.find(11, 2, 10));
+        assertEquals(20, ranges.find(11, 3, 10));
+        assertEquals(25, ranges.find(25, 5, 10));
+        assertEquals(-1, ranges.find(25, 6, 10));
+        // gives up after looking at the first range.
+        assertEquals(-1, ranges.find(5, 4, 1));
+        assertEquals(20, ranges.find(5, 4, 2));
+    }
+
+    @Test
+    public void unionAndDifference() {
+        Ranges ranges = new Ranges();
+        ranges.add(0, 5);
+        ranges.add(10, 5);
+        ranges.add(30, 5);
+
+        Ranges other = new Ranges();
+        other.add(3, 4);
+        other.add(15, 2);
+        other.add(20, 2);
+
+        Ranges union = ranges.copy();
+        union.add(other);
+        assertEquals(ranges(range(0,7),range(10,17),range(20,22),range(30,35)), union.toArrayList());
+
+        Ranges difference = ranges.copy();
+        difference.remove(other);
+        assertEquals(ranges(range(0,3),range(10,15),range(30,35)), difference.toArrayList());
+
+        other.add(11, 1);
+        other.add(13, 1);
+        other.add(29, 10);
+        difference.remove(other);
+        assertEquals(ranges(range(0,3),range(10,11),range(12,13),range(14,15)), difference.toArrayList());
+    }
+
+    @Test
+    public void randomOperations() throws Exception {
+        Random random = new Random(3);
+        Ranges ranges = new Ranges();
+        boolean[] expected = new boolean[500];
+        for (int i = 0; i < 20000; i++) {
+            boolean add = random.nextBoolean();
+            Ranges other = new Ranges();
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                int start = random.nextInt(expected.length - 20);
+                int length = 1 + random.nextInt(20);
+                other.add(start, length);
+                for (int k = start; k < start + length; k++) {
+                    expected[k] = add;
+                }
+            }
+            if (random.nextBoolean()) {
+                // one range at a time.
+                for (Range range : other) {
+                    if (add) {
+                        ranges.add(range.start, range.size());
+                    } else {
+                        ranges.remove(range.start, range.size());
+                    }
+                }
+            } else if (add) {
+                ranges.add(other);
+            } else {
+                ranges.remove(other);
+            }
+        }
+
+        // the ranges are sorted and never touch.
+        int last = -1;
+        for (Range range : ranges) {
+            assertTrue(range.start > last && range.end > range.start);
+            last = range.end;
+        }
+        for (int j = 0; j < expected.length; j++) {
+            assertEquals("value " + j, expected[j], ranges.contains(j));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(baos);
+        ranges.writeExternal(os);
+        os.close();
+        Ranges copy = new Ranges();
+        copy.readExternal(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(ranges.toArrayList(), copy.toArrayList());
+    }
+
     ArrayList<Range> ranges(Range... args) {
         ArrayList<Range> rc = new ArrayList<Range>();
         for (Range range : args) {